@@ -0,0 +1,50 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ncsu.sys.MKmeans.Value;
+import org.ncsu.sys.MKmeans.VectorBlock;
+
+/**
+ * Synthetic inputs shared by the benchmarks: k centroids uniform in
+ * [0, RANGE)^d and vectors drawn around them with a spread close to the
+ * centroid spacing, i.e. a half-converged clustering as in
+ * org.ncsu.sys.MKmeansTest.AssignerBenchmark.
+ */
+final class BenchmarkData {
+
+	static final int RANGE = 4096;
+
+	private BenchmarkData() {
+	}
+
+	static List<Value> centroids(int k, int d, long seed) {
+		Random r = new Random(seed);
+		List<Value> centroids = new ArrayList<Value>(k);
+		for(int i = 0; i < k; i++){
+			Value centroid = new Value(d, i);
+			for(int j = 0; j < d; j++)
+				centroid.getCoordinates()[j] = r.nextInt(RANGE);
+			centroids.add(centroid);
+		}
+		return centroids;
+	}
+
+	static VectorBlock vectors(List<Value> centroids, int n, int d, long seed) throws IOException {
+		Random r = new Random(seed);
+		int k = centroids.size();
+		double spread = RANGE / Math.pow(k, 1.0 / d);
+		VectorBlock points = new VectorBlock(d, n);
+		int[] p = new int[d];
+		for(int i = 0; i < n; i++){
+			int[] c = centroids.get(r.nextInt(k)).getCoordinates();
+			for(int j = 0; j < d; j++)
+				p[j] = c[j] + (int)(r.nextGaussian() * spread);
+			points.add(p, -1);
+		}
+		return points;
+	}
+}
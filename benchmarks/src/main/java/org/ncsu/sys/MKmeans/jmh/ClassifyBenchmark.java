@@ -0,0 +1,75 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ncsu.sys.MKmeans.Classifier;
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+import org.ncsu.sys.MKmeans.PartialCentroid;
+import org.ncsu.sys.MKmeans.Value;
+import org.ncsu.sys.MKmeans.VectorBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a streaming MKMMapper does with one block: assign every vector and
+ * fold it into the partial centroids. Time is per block of n vectors;
+ * divide by n for the per-vector cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifyBenchmark {
+
+	@Param({"8", "64", "512"})
+	public int k;
+
+	@Param({"2", "8", "32"})
+	public int d;
+
+	@Param({"65536"})
+	public int n;
+
+	@Param({"LINEAR", "HAMERLY", "KDTREE", "AUTO"})
+	public AssignmentType assignment;
+
+	@Param({"1"})
+	public int threads;
+
+	private Classifier classifier;
+	private VectorBlock vectors;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		List<Value> centroids = BenchmarkData.centroids(k, d, 31 * k + d);
+		vectors = BenchmarkData.vectors(centroids, n, d, 17);
+		classifier = new Classifier(centroids, d, assignment, threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		classifier.close();
+	}
+
+	@Benchmark
+	public PartialCentroid[] classify() throws IOException {
+		PartialCentroid[] partials = classifier.newPartials();
+		classifier.classify(vectors, partials);
+		return partials;
+	}
+}
@@ -0,0 +1,74 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.ncsu.sys.MKmeans.MKMUtils;
+import org.ncsu.sys.MKmeans.VectorBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MKMUtils.getDistance over a block of vectors against one centroid: the
+ * exact long kernel on int rows, and the double kernel used with
+ * KM.coordinates=double.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+	private static final int N = 4096;
+
+	@Param({"2", "8", "32", "128"})
+	public int d;
+
+	private int[] points;
+	private int[] centroid;
+	private double[] doublePoints;
+	private double[] doubleCentroid;
+
+	@Setup
+	public void setup() throws IOException {
+		VectorBlock block = BenchmarkData.vectors(BenchmarkData.centroids(16, d, 1), N, d, 2);
+		points = block.getData();
+		centroid = BenchmarkData.centroids(1, d, 3).get(0).getCoordinates();
+		doublePoints = new double[points.length];
+		for(int i = 0; i < points.length; i++)
+			doublePoints[i] = points[i] + 0.5;
+		doubleCentroid = new double[d];
+		for(int i = 0; i < d; i++)
+			doubleCentroid[i] = centroid[i] + 0.25;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public long getDistance() {
+		long sum = 0;
+		for(int i = 0; i < N; i++)
+			sum += MKMUtils.getDistance(points, i * d, centroid, 0, d);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public double getDistanceDouble() {
+		double sum = 0;
+		for(int i = 0; i < N; i++)
+			sum += MKMUtils.getDistance(doublePoints, i * d, doubleCentroid, 0, d);
+		return sum;
+	}
+}
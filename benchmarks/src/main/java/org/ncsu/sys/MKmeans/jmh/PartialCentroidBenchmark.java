@@ -0,0 +1,90 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ncsu.sys.MKmeans.Classifier;
+import org.ncsu.sys.MKmeans.PartialCentroid;
+import org.ncsu.sys.MKmeans.Value;
+import org.ncsu.sys.MKmeans.VectorBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PartialCentroid accumulation: adding raw vectors as the mapper does, and
+ * merging partial centroids as the combiner, the reducer and the
+ * multi-threaded classifier do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartialCentroidBenchmark {
+
+	private static final int N = 1024;
+
+	@Param({"2", "8", "32", "128"})
+	public int d;
+
+	private VectorBlock vectors;
+	private List<Value> values;
+	private PartialCentroid[] partials;
+	private PartialCentroid target;
+
+	@Setup
+	public void setup() throws IOException {
+		List<Value> centroids = BenchmarkData.centroids(16, d, 5);
+		vectors = BenchmarkData.vectors(centroids, N, d, 7);
+		values = vectors.toValues();
+		partials = new PartialCentroid[N];
+		for(int i = 0; i < N; i++){
+			partials[i] = new PartialCentroid(d);
+			partials[i].copy(values.get(i));
+		}
+		target = new PartialCentroid(d);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public PartialCentroid addRows() {
+		int[] data = vectors.getData();
+		target.copy(values.get(0));
+		for(int i = 1; i < N; i++)
+			target.addVector(data, i * d);
+		return target;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public PartialCentroid mergePartials() {
+		target.copy(partials[0]);
+		for(int i = 1; i < N; i++)
+			target.addVector(partials[i]);
+		return target;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public PartialCentroid[] mergeArrays() {
+		PartialCentroid[] into = new PartialCentroid[1];
+		PartialCentroid[] from = new PartialCentroid[1];
+		for(int i = 0; i < N; i++){
+			from[0] = partials[i];
+			Classifier.merge(into, from);
+		}
+		return into;
+	}
+}
@@ -0,0 +1,103 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.Value;
+import org.ncsu.sys.MKmeans.VectorBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * write/readFields throughput of a Values partition record and of single
+ * Value records, per vector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+	private static final int N = 4096;
+
+	@Param({"2", "8", "32"})
+	public int d;
+
+	private List<Value> vectors;
+	private Values values;
+	private DataOutputBuffer out;
+	private DataInputBuffer in;
+	private byte[] valuesBytes;
+	private byte[] valueBytes;
+	private Values readValues;
+	private Value readValue;
+
+	@Setup
+	public void setup() throws IOException {
+		VectorBlock block = BenchmarkData.vectors(BenchmarkData.centroids(16, d, 11), N, d, 13);
+		vectors = block.toValues();
+		values = new Values();
+		values.setValues(vectors);
+		out = new DataOutputBuffer();
+		in = new DataInputBuffer();
+		values.write(out);
+		valuesBytes = Arrays.copyOf(out.getData(), out.getLength());
+		out.reset();
+		for(Value vector : vectors)
+			vector.write(out);
+		valueBytes = Arrays.copyOf(out.getData(), out.getLength());
+		readValues = new Values();
+		readValue = new Value();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int writeValues() throws IOException {
+		out.reset();
+		values.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Values readValues() throws IOException {
+		in.reset(valuesBytes, valuesBytes.length);
+		readValues.readFields(in);
+		return readValues;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int writeValue() throws IOException {
+		out.reset();
+		for(Value vector : vectors)
+			vector.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Value readValue() throws IOException {
+		in.reset(valueBytes, valueBytes.length);
+		for(int i = 0; i < N; i++)
+			readValue.readFields(in);
+		return readValue;
+	}
+}
@@ -0,0 +1,92 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ncsu.sys.MKmeans.MKMUtils;
+import org.ncsu.sys.MKmeans.SparseValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MKMUtils.getSparseDistance against the dense getDistance of the same
+ * vectors, for d = 1024 and a growing number of non-zeros.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparseDistanceBenchmark {
+
+	private static final int N = 1024;
+	private static final int D = 1024;
+
+	@Param({"8", "64", "256"})
+	public int nnz;
+
+	private SparseValue[] sparse;
+	private int[] dense;
+	private int[] centroid;
+	private long centroidNorm;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(1);
+		sparse = new SparseValue[N];
+		dense = new int[N * D];
+		for(int i = 0; i < N; i++){
+			int[] indices = new int[nnz];
+			int[] values = new int[nnz];
+			int[] perm = new int[D];
+			for(int j = 0; j < D; j++)
+				perm[j] = j;
+			for(int j = 0; j < nnz; j++){
+				int t = j + r.nextInt(D - j);
+				int swap = perm[j];
+				perm[j] = perm[t];
+				perm[t] = swap;
+			}
+			System.arraycopy(perm, 0, indices, 0, nnz);
+			Arrays.sort(indices);
+			for(int j = 0; j < nnz; j++){
+				values[j] = 1 + r.nextInt(BenchmarkData.RANGE);
+				dense[i * D + indices[j]] = values[j];
+			}
+			sparse[i] = new SparseValue(D);
+			sparse[i].set(indices, values, nnz);
+		}
+		centroid = BenchmarkData.centroids(1, D, 3).get(0).getCoordinates();
+		centroidNorm = MKMUtils.getSquaredNorm(centroid, 0, D);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public long sparse() {
+		long sum = 0;
+		for(int i = 0; i < N; i++)
+			sum += MKMUtils.getSparseDistance(sparse[i], centroid, 0, centroidNorm);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public long dense() {
+		long sum = 0;
+		for(int i = 0; i < N; i++)
+			sum += MKMUtils.getDistance(dense, i * D, centroid, 0, D);
+		return sum;
+	}
+}
@@ -0,0 +1,76 @@
+package org.ncsu.sys.MKmeans.jmh;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.ValuesFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Values write/readFields per vector in each {@link ValuesFormat}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValuesFormatBenchmark {
+
+	private static final int N = 4096;
+
+	@Param({"2", "8", "32"})
+	public int d;
+
+	@Param({"LEGACY", "VARINT", "DELTA"})
+	public ValuesFormat format;
+
+	private Values values;
+	private DataOutputBuffer out;
+	private DataInputBuffer in;
+	private byte[] bytes;
+	private Values read;
+
+	@Setup
+	public void setup() throws IOException {
+		values = new Values();
+		values.setValues(BenchmarkData.vectors(BenchmarkData.centroids(16, d, 11), N, d, 13).toValues());
+		values.setFormat(format);
+		out = new DataOutputBuffer();
+		in = new DataInputBuffer();
+		values.write(out);
+		bytes = Arrays.copyOf(out.getData(), out.getLength());
+		read = new Values();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int write() throws IOException {
+		out.reset();
+		values.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Values read() throws IOException {
+		in.reset(bytes, bytes.length);
+		read.readFields(in);
+		return read;
+	}
+}
@@ -0,0 +1,52 @@
+package org.ncsu.sys.MKmeans;
+
+/**
+ * Finds the nearest centroid of a vector stored in a flat int[] (a
+ * {@link VectorBlock} row or a Value's coordinates). Implementations are
+ * built once per centroid set and count the distance computations they
+ * perform and skip, which the mapper publishes as counters. An instance is
+ * not thread-safe; see {@link #newWorker()}.
+ */
+public abstract class Assigner {
+
+	protected final VectorBlock centroids;
+	protected final int dimension;
+	protected long distanceCount;
+	protected long savedCount;
+
+	protected Assigner(VectorBlock centroids) {
+		this.centroids = centroids;
+		this.dimension = centroids.getDimension();
+	}
+
+	/**
+	 * @return the centroid index (not the row) of the nearest centroid
+	 */
+	public int getNearestCentroidIndex(int[] data, int offset) {
+		return centroids.getCentroidIdx(getNearestRow(data, offset));
+	}
+
+	/**
+	 * @return the row in the centroid block of the nearest centroid
+	 */
+	public abstract int getNearestRow(int[] data, int offset);
+
+	/**
+	 * Returns an assigner over the same centroids that shares the immutable
+	 * search structure but has its own query state and counts, so that each
+	 * classification thread can use one without locking.
+	 */
+	public abstract Assigner newWorker();
+
+	public VectorBlock getCentroids() {
+		return centroids;
+	}
+
+	public long getDistanceCount() {
+		return distanceCount;
+	}
+
+	public long getSavedCount() {
+		return savedCount;
+	}
+}
@@ -0,0 +1,26 @@
+package org.ncsu.sys.MKmeans;
+
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+
+public class AssignerFactory {
+	public static Assigner getInstance(AssignmentType type, VectorBlock centroids){
+		Assigner assigner = null;
+		if(type == AssignmentType.AUTO){
+			type = KdTreeAssigner.isPreferred(centroids.getCount(), centroids.getDimension()) ?
+					AssignmentType.KDTREE : AssignmentType.LINEAR;
+		}
+		switch(type){
+		case HAMERLY:
+			assigner = new HamerlyAssigner(centroids);
+			break;
+		case KDTREE:
+			assigner = new KdTreeAssigner(centroids);
+			break;
+		case LINEAR:
+		default:
+			assigner = new LinearAssigner(centroids);
+			break;
+		}
+		return assigner;
+	}
+}
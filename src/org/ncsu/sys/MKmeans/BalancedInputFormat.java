@@ -0,0 +1,84 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.ncsu.sys.MKmeans.SplitPlanner.Chunk;
+
+/**
+ * Reads the input as planned by {@link SplitPlanner}: every group of the
+ * plan at KM.balance.plan becomes one CombineFileSplit, placed on the hosts
+ * holding its largest range. Without a plan, or when an input file changed
+ * since it was made, the splits of the layout's regular input format are
+ * used unchanged.
+ */
+public class BalancedInputFormat extends InputFormat<Key, Writable> {
+
+	@Override
+	public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		String planPath = conf.get("KM.balance.plan");
+		if(planPath != null){
+			Path plan = new Path(planPath);
+			FileSystem fs = plan.getFileSystem(conf);
+			List<List<Chunk>> groups = fs.exists(plan) ? new SplitPlanner(fs).readPlan(plan) : null;
+			if(groups != null)
+				return toSplits(groups, fs);
+			System.out.println("Ignoring stale or missing split plan " + plan);
+		}
+		return delegate(conf).getSplits(context);
+	}
+
+	private List<InputSplit> toSplits(List<List<Chunk>> groups, FileSystem fs) throws IOException {
+		List<InputSplit> splits = new ArrayList<InputSplit>(groups.size());
+		for(List<Chunk> group : groups){
+			if(group.isEmpty())
+				continue;
+			Path[] paths = new Path[group.size()];
+			long[] starts = new long[group.size()];
+			long[] lengths = new long[group.size()];
+			Chunk largest = group.get(0);
+			for(int i = 0; i < group.size(); i++){
+				Chunk chunk = group.get(i);
+				paths[i] = chunk.path;
+				starts[i] = chunk.start;
+				lengths[i] = chunk.length;
+				if(chunk.length > largest.length)
+					largest = chunk;
+			}
+			String[] hosts = new String[0];
+			BlockLocation[] blocks = fs.getFileBlockLocations(fs.getFileStatus(largest.path),
+					largest.start, Math.max(1, largest.length));
+			if(blocks != null && blocks.length > 0)
+				hosts = blocks[0].getHosts();
+			splits.add(new CombineFileSplit(paths, starts, lengths, hosts));
+		}
+		return splits;
+	}
+
+	@Override
+	public RecordReader<Key, Writable> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		return new BalancedRecordReader();
+	}
+
+	@SuppressWarnings("unchecked")
+	static InputFormat<Key, ? extends Writable> delegate(Configuration conf) {
+		if(!conf.getBoolean("KM.vectorPerRecord", false) && conf.getBoolean("KM.chunkedRead", true))
+			return new ChunkedValuesInputFormat();
+		return new SequenceFileInputFormat<Key, Writable>();
+	}
+}
@@ -0,0 +1,91 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads the ranges of a CombineFileSplit one after the other through the
+ * layout's regular record reader; a plain FileSplit is read directly.
+ */
+public class BalancedRecordReader extends RecordReader<Key, Writable> {
+
+	private InputFormat<Key, ? extends Writable> format;
+	private TaskAttemptContext context;
+	private FileSplit[] chunks;
+	private long totalLength;
+	private long doneLength;
+	private int next;
+	private RecordReader<Key, ? extends Writable> current;
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		this.context = context;
+		this.format = BalancedInputFormat.delegate(context.getConfiguration());
+		if(split instanceof CombineFileSplit){
+			CombineFileSplit combined = (CombineFileSplit) split;
+			chunks = new FileSplit[combined.getNumPaths()];
+			for(int i = 0; i < chunks.length; i++)
+				chunks[i] = new FileSplit(combined.getPath(i), combined.getOffset(i),
+						combined.getLength(i), combined.getLocations());
+		}
+		else{
+			chunks = new FileSplit[] {(FileSplit) split};
+		}
+		totalLength = 0;
+		for(FileSplit chunk : chunks)
+			totalLength += chunk.getLength();
+		doneLength = 0;
+		next = 0;
+		current = null;
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		while(true){
+			if(current != null && current.nextKeyValue())
+				return true;
+			if(current != null){
+				doneLength += chunks[next - 1].getLength();
+				current.close();
+				current = null;
+			}
+			if(next >= chunks.length)
+				return false;
+			current = format.createRecordReader(chunks[next], context);
+			current.initialize(chunks[next], context);
+			next++;
+		}
+	}
+
+	@Override
+	public Key getCurrentKey() throws IOException, InterruptedException {
+		return current.getCurrentKey();
+	}
+
+	@Override
+	public Writable getCurrentValue() throws IOException, InterruptedException {
+		return current.getCurrentValue();
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException {
+		if(totalLength == 0)
+			return next >= chunks.length ? 1.0f : 0.0f;
+		float inChunk = current == null ? 0 : current.getProgress() * chunks[next - 1].getLength();
+		return Math.min(1.0f, (doneLength + inChunk) / totalLength);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(current != null)
+			current.close();
+	}
+}
@@ -0,0 +1,92 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Ships an iteration's centroids to the tasks through the distributed cache.
+ *
+ * The driver adds every centroid file as a job cache file linked as
+ * km-centroids-N in the task's working directory, so the centroids are
+ * copied to each node once per job instead of every mapper opening
+ * KM.inputCenterPath on the shared file system. The parsed centroids are
+ * kept per JVM, so tasks sharing a JVM parse them only once.
+ */
+public class CentroidCache {
+
+	static final String LINK_PREFIX = "km-centroids-";
+	private static final boolean DEBUG = true;
+
+	private static String sharedKey;
+	private static List<Value> sharedCentroids;
+
+	/**
+	 * Adds the centroid file(s) at centersIn, a single file or a directory of
+	 * reducer part files, to the job's cache files.
+	 */
+	public static void publish(Job job, Path centersIn, FileSystem fs) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		if(fs.getFileStatus(centersIn).isDirectory()){
+			for(FileStatus part : fs.listStatus(centersIn)){
+				String name = part.getPath().getName();
+				if(name.startsWith("part") && !name.endsWith(".crc"))
+					files.add(part.getPath());
+			}
+		}
+		else{
+			files.add(centersIn);
+		}
+		for(int i = 0; i < files.size(); i++){
+			URI uri = fs.makeQualified(files.get(i)).toUri();
+			job.addCacheFile(URI.create(uri.toString() + "#" + LINK_PREFIX + i));
+		}
+	}
+
+	/**
+	 * @return the centroids shipped with this job, or null if none were
+	 *         published; the list is shared and must not be modified
+	 * @throws IOException if a published file is missing, unreadable or
+	 *         holds no centroids, so the task fails instead of classifying
+	 *         against part of them
+	 */
+	public static synchronized List<Value> load(URI[] cacheFiles) throws IOException {
+		if(cacheFiles == null)
+			return null;
+		List<URI> centroidFiles = new ArrayList<URI>();
+		StringBuilder key = new StringBuilder();
+		for(URI uri : cacheFiles){
+			if(uri.getFragment() != null && uri.getFragment().startsWith(LINK_PREFIX)){
+				centroidFiles.add(uri);
+				key.append(uri).append(';');
+			}
+		}
+		if(centroidFiles.isEmpty())
+			return null;
+		if(key.toString().equals(sharedKey))
+			return sharedCentroids;
+		List<Value> centroids = new ArrayList<Value>();
+		for(URI uri : centroidFiles){
+			File link = new File(uri.getFragment());
+			//read the node-local copy; the original is only a fallback
+			Path path = link.exists() ? new Path(link.getAbsoluteFile().toURI())
+					: new Path(uri.getScheme(), uri.getAuthority(), uri.getPath());
+			if(DEBUG) System.out.println("Reading centroids from " + path);
+			centroids.addAll(MKMUtils.readCentroids(path, false));
+		}
+		//k-means|| candidate sets differ in size from KM.k, but are never empty
+		if(centroids.isEmpty())
+			throw new IOException("No centroids in " + centroidFiles);
+		sharedKey = key.toString();
+		sharedCentroids = Collections.unmodifiableList(centroids);
+		return sharedCentroids;
+	}
+}
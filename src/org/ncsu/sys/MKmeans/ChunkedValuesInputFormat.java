@@ -0,0 +1,41 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * Input format for Values partitions that never holds a whole partition in
+ * memory: every Values record is handed to the mapper as a series of smaller
+ * Values chunks, see {@link ChunkedValuesRecordReader}. Used unless
+ * KM.chunkedRead=false. A Values record can only be decoded from its start,
+ * so files are split at the sync markers between records: a partition
+ * written as many Values batches (MKMDataGenerator, the astro layout) is
+ * read by several tasks, while a partition of one record still goes to
+ * one task whatever the split size.
+ */
+public class ChunkedValuesInputFormat extends FileInputFormat<Key, Writable> {
+
+	@Override
+	public RecordReader<Key, Writable> createRecordReader(InputSplit split,
+			TaskAttemptContext context) throws IOException, InterruptedException {
+		return new ChunkedValuesRecordReader();
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path filename) {
+		return true;
+	}
+
+	@Override
+	protected long getFormatMinSplitSize() {
+		return SequenceFile.SYNC_INTERVAL;
+	}
+}
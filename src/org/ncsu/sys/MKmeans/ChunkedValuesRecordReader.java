@@ -0,0 +1,316 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.ValuesFormat;
+
+/**
+ * Reads a partition of Values records in bounded memory.
+ *
+ * The SequenceFile records are parsed straight from the file stream through
+ * a buffer of KM.chunkedRead.bufferBytes (default 64 KB), and every Values
+ * record is decoded, legacy or compact, into chunks of at most
+ * KM.classifyBatchSize vectors and KM.chunkedRead.blockBytes (default 4 MB)
+ * of coordinates. Each chunk is returned as a Values value under the key of
+ * its record, so the mapper sees a large partition as several smaller ones.
+ * The value and its block are reused from chunk to chunk.
+ *
+ * A split starts at the first sync marker at or after its start and ends
+ * at the first sync marker at or after its end, like SequenceFileRecordReader,
+ * so the splits of a partition of many Values records each read whole
+ * records and never the same one.
+ *
+ * Compressed files, or files of another value class, are read by the
+ * regular SequenceFileRecordReader.
+ */
+public class ChunkedValuesRecordReader extends RecordReader<Key, Writable> {
+
+	//see SequenceFile.Writer.sync()
+	private static final int SYNC_ESCAPE = -1;
+	private static final int SYNC_HASH_SIZE = 16;
+
+	private RecordReader<Key, Writable> fallback;
+	private FSDataInputStream in;
+	private byte[] buf;
+	private int pos;
+	private int limit;
+	private long bufStart;
+	private long start;
+	private long end;
+	private long fileEnd;
+	private int batchSize;
+	private long blockBytes;
+	private Key key;
+	private Values value;
+	private VectorBlock block;
+	private byte[] keyBytes;
+	private DataInputBuffer keyIn;
+	//the Values record being decoded
+	private int remaining;
+	private int rowInRecord;
+	private ValuesFormat format;
+	private int dim;
+	private long valueEnd;
+	private int[] previous;
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		FileSplit fileSplit = (FileSplit) split;
+		Configuration conf = context.getConfiguration();
+		Path path = fileSplit.getPath();
+		long first;
+		SequenceFile.Reader header = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+		try {
+			if(header.isCompressed() || !Values.class.equals(header.getValueClass())){
+				fallback = new SequenceFileRecordReader<Key, Writable>();
+				fallback.initialize(split, context);
+				return;
+			}
+			//the header, or the sync marker that starts this split
+			if(fileSplit.getStart() > header.getPosition())
+				header.sync(fileSplit.getStart());
+			first = header.getPosition();
+		} finally {
+			header.close();
+		}
+		FileSystem fs = path.getFileSystem(conf);
+		fileEnd = fs.getFileStatus(path).getLen();
+		end = fileSplit.getStart() + fileSplit.getLength();
+		in = fs.open(path);
+		in.seek(first);
+		start = bufStart = first;
+		buf = new byte[Math.max(64, conf.getInt("KM.chunkedRead.bufferBytes", 1 << 16))];
+		pos = limit = 0;
+		batchSize = Math.max(1, conf.getInt("KM.classifyBatchSize", 65536));
+		blockBytes = conf.getLong("KM.chunkedRead.blockBytes", 4L << 20);
+		key = new Key();
+		value = new Values();
+		block = new VectorBlock();
+		keyBytes = new byte[64];
+		keyIn = new DataInputBuffer();
+		remaining = 0;
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		if(fallback != null)
+			return fallback.nextKeyValue();
+		while(remaining == 0){
+			if(position() >= fileEnd)
+				return false;
+			long recordStart = position();
+			int length = readInt();
+			if(length == SYNC_ESCAPE){
+				//the next split starts here
+				if(recordStart >= end)
+					return false;
+				skip(SYNC_HASH_SIZE);
+				continue;
+			}
+			readKey(readInt(), length);
+			int first = readInt();
+			if(first == ValuesFormat.COMPACT_MARKER){
+				require(1);
+				format = ValuesFormat.getFormat(buf[pos++]);
+				remaining = readVarInt();
+				dim = readVarInt();
+			}
+			else{
+				format = ValuesFormat.LEGACY;
+				remaining = first;
+				//every legacy vector carries its dimension, take the first one's
+				dim = remaining > 0 ? peekInt() : 0;
+			}
+			if(remaining < 0 || dim < 0)
+				throw new IOException("Corrupt Values record before " + valueEnd);
+			rowInRecord = 0;
+			if(previous == null || previous.length != dim)
+				previous = new int[dim];
+			if(remaining == 0)
+				endRecord();
+		}
+		int rows = (int)Math.min(remaining, Math.max(1, Math.min(batchSize, blockBytes / (4L * (dim + 1)))));
+		block.clear();
+		block.ensureCapacity(rows);
+		if(format == ValuesFormat.LEGACY)
+			readLegacy(rows);
+		else
+			readCompact(rows, format == ValuesFormat.DELTA);
+		remaining -= rows;
+		if(remaining == 0)
+			endRecord();
+		value.setBlock(block);
+		return true;
+	}
+
+	private void readKey(int keyLength, int recordLength) throws IOException {
+		if(keyLength < 0 || keyLength > recordLength)
+			throw new IOException("Corrupt record at " + position());
+		if(keyBytes.length < keyLength)
+			keyBytes = new byte[keyLength];
+		for(int off = 0; off < keyLength; ){
+			if(pos == limit && !fill())
+				throw new EOFException("Truncated key at " + position());
+			int n = Math.min(keyLength - off, limit - pos);
+			System.arraycopy(buf, pos, keyBytes, off, n);
+			pos += n;
+			off += n;
+		}
+		keyIn.reset(keyBytes, keyLength);
+		key.readFields(keyIn);
+		valueEnd = position() + recordLength - keyLength;
+	}
+
+	private void readLegacy(int rows) throws IOException {
+		for(int i = 0; i < rows; i++){
+			int d = readInt();
+			if(d != dim)
+				throw new IOException("Dimension mismatch in Values record: " + d + " after " + dim);
+			int off = block.nextRow(d);
+			int[] data = block.getData();
+			for(int j = 0; j < dim; j++)
+				data[off + j] = readInt();
+			block.setCentroidIdx(block.getCount() - 1, readInt());
+		}
+	}
+
+	private void readCompact(int rows, boolean delta) throws IOException {
+		for(int i = 0; i < rows; i++){
+			int off = block.nextRow(dim);
+			int[] data = block.getData();
+			for(int j = 0; j < dim; j++){
+				int v = VectorBlock.unZigZag(readVarInt());
+				if(delta && rowInRecord > 0)
+					v += i == 0 ? previous[j] : data[off - dim + j];
+				data[off + j] = v;
+			}
+			block.setCentroidIdx(block.getCount() - 1, VectorBlock.unZigZag(readVarInt()));
+			rowInRecord++;
+		}
+		//the first row of the next chunk is a difference to this one
+		if(delta && rows > 0)
+			System.arraycopy(block.getData(), (rows - 1) * dim, previous, 0, dim);
+	}
+
+	private void endRecord() throws IOException {
+		if(position() != valueEnd)
+			throw new IOException("Values record ended at " + position() + ", expected " + valueEnd);
+	}
+
+	private long position() {
+		return bufStart + pos;
+	}
+
+	/**
+	 * Moves the unread bytes to the front of the buffer and reads more.
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		int left = limit - pos;
+		System.arraycopy(buf, pos, buf, 0, left);
+		bufStart += pos;
+		pos = 0;
+		limit = left;
+		int n = in.read(buf, limit, buf.length - limit);
+		if(n <= 0)
+			return false;
+		limit += n;
+		return true;
+	}
+
+	private void require(int n) throws IOException {
+		while(limit - pos < n){
+			if(!fill())
+				throw new EOFException("Truncated Values partition at " + position());
+		}
+	}
+
+	private void skip(long n) throws IOException {
+		while(n > 0){
+			if(pos == limit && !fill())
+				throw new EOFException("Truncated Values partition at " + position());
+			int step = (int)Math.min(n, limit - pos);
+			pos += step;
+			n -= step;
+		}
+	}
+
+	private int peekInt() throws IOException {
+		require(4);
+		return ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+				| ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+	}
+
+	private int readInt() throws IOException {
+		int v = peekInt();
+		pos += 4;
+		return v;
+	}
+
+	private int readVarInt() throws IOException {
+		if(limit - pos < 5){
+			int v = 0;
+			for(int shift = 0; shift < 35; shift += 7){
+				require(1);
+				byte b = buf[pos++];
+				v |= (b & 0x7F) << shift;
+				if(b >= 0)
+					return v;
+			}
+			throw new IOException("Malformed varint at " + position());
+		}
+		int v = 0;
+		int shift = 0;
+		byte b;
+		while((b = buf[pos++]) < 0){
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+			if(shift == 35)
+				throw new IOException("Malformed varint at " + position());
+		}
+		return v | (b << shift);
+	}
+
+	@Override
+	public Key getCurrentKey() throws IOException, InterruptedException {
+		return fallback != null ? fallback.getCurrentKey() : key;
+	}
+
+	@Override
+	public Writable getCurrentValue() throws IOException, InterruptedException {
+		return fallback != null ? fallback.getCurrentValue() : value;
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException {
+		if(fallback != null)
+			return fallback.getProgress();
+		if(end == start)
+			return 0.0f;
+		return Math.min(1.0f, (position() - start) / (float)(end - start));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(fallback != null)
+			fallback.close();
+		if(in != null)
+			in.close();
+	}
+}
@@ -0,0 +1,258 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
+
+/**
+ * Assigns blocks of vectors to their nearest centroid and sums them into
+ * PartialCentroids indexed by centroid index. With more than one thread the
+ * rows of a block are split into contiguous ranges; every thread owns an
+ * {@link Assigner} worker and its own PartialCentroid array, and the arrays
+ * are merged once the block is done, so no accumulator is ever shared.
+ *
+ * {@link SparseValue} points are classified one at a time by a linear scan
+ * on the caller thread with the sparse-dense distance, against the squared
+ * centroid norms computed on the first sparse point, so a point costs
+ * O(k * nnz) rather than O(k * d).
+ *
+ * With {@link DoubleValue} centroids (KM.coordinates=double) every vector is
+ * assigned by a {@link DoubleLinearAssigner} against the exact centroids,
+ * whatever KM.assignment says; the pruned assigners work on int
+ * coordinates. DoubleValue points are classified one at a time like sparse
+ * ones.
+ */
+public class Classifier {
+
+	//below this many rows per thread a block is classified on the caller thread
+	private static final int MIN_ROWS_PER_THREAD = 1024;
+
+	private final List<Value> centroids;
+	private final VectorBlock centroidBlock;
+	private final Assigner[] workers;
+	private final ExecutorService pool;
+	private final boolean doubleCentroids;
+	private long[] centroidNorms;
+	private long sparseDistanceCount;
+	private DoubleLinearAssigner doubleAssigner;
+
+	public Classifier(List<Value> centroids, int dimension, AssignmentType type, int threads) throws IOException {
+		this.centroids = centroids;
+		VectorBlock block = new VectorBlock(dimension, centroids.size());
+		for(Value centroid : centroids){
+			block.add(centroid);
+		}
+		if(threads < 1)
+			threads = Runtime.getRuntime().availableProcessors();
+		workers = new Assigner[threads];
+		centroidBlock = block;
+		boolean real = false;
+		for(Value centroid : centroids)
+			real |= centroid instanceof DoubleValue;
+		doubleCentroids = real;
+		if(doubleCentroids){
+			doubleAssigner = new DoubleLinearAssigner(block, centroids);
+			workers[0] = doubleAssigner;
+		}
+		else
+			workers[0] = AssignerFactory.getInstance(type, block);
+		for(int t = 1; t < threads; t++){
+			workers[t] = workers[0].newWorker();
+		}
+		pool = threads > 1 ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kmeans-classify");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}) : null;
+	}
+
+	public List<Value> getCentroids() {
+		return centroids;
+	}
+
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	public PartialCentroid[] newPartials() {
+		return new PartialCentroid[centroids.size()];
+	}
+
+	public int getNearestCentroidIndex(int[] data, int offset) {
+		return workers[0].getNearestCentroidIndex(data, offset);
+	}
+
+	/**
+	 * Adds every row of vectors to the partial centroid of its nearest centroid.
+	 */
+	public void classify(VectorBlock vectors, PartialCentroid[] partials) throws IOException {
+		int count = vectors.getCount();
+		int threads = pool == null ? 1 : Math.min(workers.length, count / MIN_ROWS_PER_THREAD);
+		if(threads <= 1){
+			classify(workers[0], vectors, 0, count, partials);
+			return;
+		}
+		List<Future<PartialCentroid[]>> results = new ArrayList<Future<PartialCentroid[]>>(threads);
+		for(int t = 0; t < threads; t++){
+			final Assigner worker = workers[t];
+			final VectorBlock block = vectors;
+			final int from = (int)((long)count * t / threads);
+			final int to = (int)((long)count * (t + 1) / threads);
+			results.add(pool.submit(new Callable<PartialCentroid[]>() {
+				@Override
+				public PartialCentroid[] call() throws Exception {
+					PartialCentroid[] local = newPartials();
+					classify(worker, block, from, to, local);
+					return local;
+				}
+			}));
+		}
+		try {
+			for(Future<PartialCentroid[]> result : results){
+				merge(partials, result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Adds a sparse point to the partial centroid of its nearest centroid.
+	 */
+	public void classify(SparseValue point, PartialCentroid[] partials) throws IOException {
+		int dim = centroidBlock.getDimension();
+		if(point.getDimension() != dim)
+			throw new IOException("Sparse vector of dimension " + point.getDimension() + ", centroids have " + dim);
+		if(doubleCentroids)
+			throw new IOException("Sparse vectors need int centroids, set KM.coordinates=int");
+		int[] data = centroidBlock.getData();
+		int rows = centroidBlock.getCount();
+		if(centroidNorms == null){
+			centroidNorms = new long[rows];
+			for(int row = 0; row < rows; row++)
+				centroidNorms[row] = MKMUtils.getSquaredNorm(data, centroidBlock.getOffset(row), dim);
+		}
+		int nearest = 0;
+		long best = Long.MAX_VALUE;
+		for(int row = 0; row < rows; row++){
+			long dist = MKMUtils.getSparseDistance(point, data, centroidBlock.getOffset(row), centroidNorms[row]);
+			if(dist < best){
+				best = dist;
+				nearest = row;
+			}
+		}
+		sparseDistanceCount += rows;
+		int idx = centroidBlock.getCentroidIdx(nearest);
+		if(partials[idx] == null){
+			partials[idx] = (PartialCentroid)VectorFactory.getInstance(VectorType.PARTIALCENTROID, dim);
+			partials[idx].setCentroidIdx(idx);
+		}
+		else if(partials[idx].getCentroidIdx() != idx){
+			throw new IOException("Fatal: Inconsistent cluster, multiple centroids problem!");
+		}
+		partials[idx].addVector(point);
+	}
+
+	/**
+	 * Adds a double point to the partial centroid of its nearest centroid.
+	 */
+	public void classify(DoubleValue point, PartialCentroid[] partials) throws IOException {
+		int dim = centroidBlock.getDimension();
+		if(point.getDimension() != dim)
+			throw new IOException("Vector of dimension " + point.getDimension() + ", centroids have " + dim);
+		if(doubleAssigner == null)
+			doubleAssigner = new DoubleLinearAssigner(centroidBlock, centroids);
+		int idx = centroidBlock.getCentroidIdx(doubleAssigner.getNearestRow(point.getDoubleCoordinates(), 0));
+		if(partials[idx] == null){
+			partials[idx] = (PartialCentroid)VectorFactory.getInstance(VectorType.PARTIALCENTROID, dim);
+			partials[idx].setCentroidIdx(idx);
+		}
+		else if(partials[idx].getCentroidIdx() != idx){
+			throw new IOException("Fatal: Inconsistent cluster, multiple centroids problem!");
+		}
+		partials[idx].addVector(point);
+	}
+
+	private void classify(Assigner assigner, VectorBlock vectors, int from, int to,
+			PartialCentroid[] partials) throws IOException {
+		int[] data = vectors.getData();
+		int dim = vectors.getDimension();
+		for(int row = from; row < to; row++){
+			int offset = row * dim;
+			int idx = assigner.getNearestCentroidIndex(data, offset);
+			addToPartial(partials, idx, data, offset, dim);
+		}
+	}
+
+	public static void addToPartial(PartialCentroid[] partials, int idx, int[] data, int offset, int dim) throws IOException {
+		if(partials[idx] == null){
+			partials[idx] = (PartialCentroid)VectorFactory.getInstance(VectorType.PARTIALCENTROID, dim);
+			partials[idx].setCentroidIdx(idx);
+		}
+		else if(partials[idx].getCentroidIdx() != idx){
+			throw new IOException("Fatal: Inconsistent cluster, multiple centroids problem!");
+		}
+		partials[idx].addVector(data, offset);
+	}
+
+	public static void merge(PartialCentroid[] into, PartialCentroid[] from) {
+		for(int i = 0; i < from.length; i++){
+			if(from[i] == null)
+				continue;
+			if(into[i] == null)
+				into[i] = from[i];
+			else
+				into[i].addVector(from[i]);
+		}
+	}
+
+	/**
+	 * Centroids that attracted no vector are emitted as a copy of themselves
+	 * so that the reducer still produces every centroid.
+	 */
+	public void fillMissingCentroids(PartialCentroid[] partials) {
+		for(Value centroid : centroids){
+			int key = centroid.getCentroidIdx();
+			if(partials[key] == null){
+				partials[key] = (PartialCentroid)VectorFactory.getInstance(VectorType.PARTIALCENTROID);
+				partials[key].copy(centroid);
+			}
+		}
+	}
+
+	public long getDistanceCount() {
+		long total = sparseDistanceCount;
+		for(Assigner worker : workers)
+			total += worker.getDistanceCount();
+		if(doubleAssigner != null && doubleAssigner != workers[0])
+			total += doubleAssigner.getDistanceCount();
+		return total;
+	}
+
+	public long getSavedCount() {
+		long total = 0;
+		for(Assigner worker : workers)
+			total += worker.getSavedCount();
+		return total;
+	}
+
+	public void close() {
+		if(pool != null)
+			pool.shutdownNow();
+	}
+}
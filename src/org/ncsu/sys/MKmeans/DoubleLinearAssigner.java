@@ -0,0 +1,58 @@
+package org.ncsu.sys.MKmeans;
+
+import java.util.List;
+
+/**
+ * Scans every centroid for every vector with double arithmetic, against
+ * the exact (possibly fractional) centroid coordinates. Used by the
+ * {@link Classifier} when the centroids are {@link DoubleValue}s, and for
+ * DoubleValue points; the int block of the base class only maps rows to
+ * centroid indices.
+ */
+public class DoubleLinearAssigner extends Assigner {
+
+	private final double[] coordinates;
+	//an int row converted once, then compared with every centroid
+	private final double[] row;
+
+	public DoubleLinearAssigner(VectorBlock centroids, List<Value> values) {
+		super(centroids);
+		this.coordinates = new double[centroids.getCount() * dimension];
+		this.row = new double[dimension];
+		for(int c = 0; c < values.size(); c++)
+			System.arraycopy(MKMUtils.getDoubleCoordinates(values.get(c)), 0, coordinates, c * dimension, dimension);
+	}
+
+	private DoubleLinearAssigner(VectorBlock centroids, double[] coordinates) {
+		super(centroids);
+		this.coordinates = coordinates;
+		this.row = new double[dimension];
+	}
+
+	@Override
+	public int getNearestRow(int[] data, int offset) {
+		for(int i = 0; i < dimension; i++)
+			row[i] = data[offset + i];
+		return getNearestRow(row, 0);
+	}
+
+	public int getNearestRow(double[] data, int offset) {
+		int nearest = -1;
+		double shortestDistance = Double.MAX_VALUE;
+		int count = centroids.getCount();
+		for(int c = 0; c < count; c++){
+			double distance = MKMUtils.getDistance(data, offset, coordinates, c * dimension, dimension);
+			if(distance < shortestDistance){
+				nearest = c;
+				shortestDistance = distance;
+			}
+		}
+		distanceCount += count;
+		return nearest;
+	}
+
+	@Override
+	public Assigner newWorker() {
+		return new DoubleLinearAssigner(centroids, coordinates);
+	}
+}
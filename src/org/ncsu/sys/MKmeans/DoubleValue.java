@@ -0,0 +1,102 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A vector with double coordinates, used for the centroids of a
+ * KM.coordinates=double run and for input written with that setting.
+ *
+ * Wire format: dimension, the coordinates as doubles and the centroid
+ * index.
+ *
+ * getCoordinates() returns a fresh copy rounded to int, so code written
+ * for int vectors still works, without the fractions.
+ */
+public class DoubleValue extends Value {
+
+	private double[] coordinates;
+
+	public DoubleValue(){
+		super();
+	}
+
+	public DoubleValue(int dimension){
+		super();
+		setDimension(dimension);
+		setCentroidIdx(MKMTypes.UNDEF_VAL);
+		this.coordinates = new double[dimension];
+	}
+
+	public double[] getDoubleCoordinates() {
+		return coordinates;
+	}
+
+	public void setDoubleCoordinates(double[] coordinates) {
+		this.coordinates = coordinates;
+	}
+
+	@Override
+	public int[] getCoordinates() {
+		int[] rounded = new int[getDimension()];
+		for(int i = 0; i < rounded.length; i++)
+			rounded[i] = (int)Math.round(coordinates[i]);
+		return rounded;
+	}
+
+	@Override
+	public void setCoordinates(int[] coordinates) {
+		this.coordinates = new double[coordinates.length];
+		for(int i = 0; i < coordinates.length; i++)
+			this.coordinates[i] = coordinates[i];
+	}
+
+	@Override
+	public void copy(Value val) {
+		setDimension(val.getDimension());
+		setCentroidIdx(val.getCentroidIdx());
+		this.coordinates = new double[val.getDimension()];
+		System.arraycopy(MKMUtils.getDoubleCoordinates(val), 0, this.coordinates, 0, this.coordinates.length);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int dimension = in.readInt();
+		if(coordinates == null || coordinates.length != dimension)
+			coordinates = new double[dimension];
+		setDimension(dimension);
+		for(int i = 0; i < dimension; i++)
+			coordinates[i] = in.readDouble();
+		setCentroidIdx(in.readInt());
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(getDimension());
+		for(int i = 0; i < getDimension(); i++)
+			out.writeDouble(coordinates[i]);
+		out.writeInt(getCentroidIdx());
+	}
+
+	@Override
+	public int compareTo(Object o) {
+		double[] other = MKMUtils.getDoubleCoordinates((Value) o);
+		for(int i = 0; i < getDimension(); i++){
+			int cmp = Double.compare(coordinates[i], other[i]);
+			if(cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append( "[" + this.getDimension() + "," + this.getCentroidIdx() + "(");
+		for(double coord : coordinates){
+			sb.append(coord + ",");
+		}
+		sb.append(")] ");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,137 @@
+package org.ncsu.sys.MKmeans;
+
+import java.util.Arrays;
+
+/**
+ * Triangle-inequality pruned assignment (KM.assignment=hamerly).
+ *
+ * Every centroid keeps the distances to all other centroids, sorted, plus
+ * half the distance to its closest neighbour. A vector is first measured
+ * against a reference centroid b (the previous vector's centroid, which is
+ * usually right for clustered input) giving the upper bound u = d(x,b):
+ * <ul>
+ * <li>if u is below half the distance from b to its nearest neighbour, b is
+ * the answer (Hamerly's test, one distance instead of k);</li>
+ * <li>otherwise the other centroids are visited in order of d(b,c) and the
+ * scan stops once the lower bound d(b,c) - u exceeds the best distance so
+ * far (Elkan's lemma), since every later centroid is further from b.</li>
+ * </ul>
+ * Whenever a closer centroid turns up the scan restarts from it, so the
+ * bound tightens quickly even when the reference was a poor guess.
+ * Per-point bounds are not carried between iterations because each
+ * iteration is a separate job. Memory is O(k*k): about 8 bytes per
+ * centroid pair.
+ */
+public class HamerlyAssigner extends Assigner {
+
+	//float centre-centre distances are shrunk by this factor so that
+	//rounding can never prune the true nearest centroid
+	private static final double SLACK = 1.0 - 1e-6;
+
+	private final int count;
+	private final float[] sortedDist;
+	private final int[] sortedRows;
+	private final double[] halfNearest;
+	private final int[] visited;
+	private int stamp;
+	private int lastRow;
+
+	public HamerlyAssigner(VectorBlock centroids) {
+		super(centroids);
+		count = centroids.getCount();
+		int stride = Math.max(count - 1, 0);
+		sortedDist = new float[count * stride];
+		sortedRows = new int[count * stride];
+		halfNearest = new double[count];
+
+		int[] cData = centroids.getData();
+		double[] cc = new double[count * count];
+		for(int i = 0; i < count; i++){
+			for(int j = i + 1; j < count; j++){
+				double d = Math.sqrt(MKMUtils.getDistance(cData, i * dimension, cData, j * dimension, dimension));
+				cc[i * count + j] = d;
+				cc[j * count + i] = d;
+			}
+		}
+		//sort each row by packing (distance bits, row) into a long: the bits
+		//of a non-negative float order the same way as the float itself
+		long[] packed = new long[stride];
+		for(int b = 0; b < count; b++){
+			int n = 0;
+			for(int j = 0; j < count; j++){
+				if(j != b){
+					float d = (float)(cc[b * count + j] * SLACK);
+					packed[n++] = ((long)Float.floatToIntBits(d) << 32) | j;
+				}
+			}
+			Arrays.sort(packed);
+			for(int r = 0; r < stride; r++){
+				sortedDist[b * stride + r] = Float.intBitsToFloat((int)(packed[r] >>> 32));
+				sortedRows[b * stride + r] = (int) packed[r];
+			}
+			halfNearest[b] = stride > 0 ? sortedDist[b * stride] / 2.0 : Double.MAX_VALUE;
+		}
+		visited = new int[count];
+		stamp = 0;
+		lastRow = 0;
+	}
+
+	private HamerlyAssigner(HamerlyAssigner other) {
+		super(other.centroids);
+		count = other.count;
+		sortedDist = other.sortedDist;
+		sortedRows = other.sortedRows;
+		halfNearest = other.halfNearest;
+		visited = new int[count];
+		stamp = 0;
+		lastRow = 0;
+	}
+
+	@Override
+	public Assigner newWorker() {
+		return new HamerlyAssigner(this);
+	}
+
+	@Override
+	public int getNearestRow(int[] data, int offset) {
+		int[] cData = centroids.getData();
+		int stride = count - 1;
+		if(++stamp == 0){
+			Arrays.fill(visited, 0);
+			stamp = 1;
+		}
+		int best = lastRow;
+		long bestDist2 = MKMUtils.getDistance(data, offset, cData, best * dimension, dimension);
+		double bestDist = Math.sqrt(bestDist2);
+		visited[best] = stamp;
+		int computed = 1;
+		int b = -1;
+		//re-anchor on every improvement: a closer reference gives a tighter
+		//bound and ends the walk after a few hops
+		while(b != best && !(bestDist < halfNearest[best])){
+			b = best;
+			double u = bestDist;
+			int base = b * stride;
+			for(int r = 0; r < stride; r++){
+				if(sortedDist[base + r] - u > bestDist)
+					break;
+				int c = sortedRows[base + r];
+				if(visited[c] == stamp)
+					continue;
+				visited[c] = stamp;
+				long dist2 = MKMUtils.getDistance(data, offset, cData, c * dimension, dimension);
+				computed++;
+				if(dist2 < bestDist2 || (dist2 == bestDist2 && c < best)){
+					best = c;
+					bestDist2 = dist2;
+					bestDist = Math.sqrt(dist2);
+					break;
+				}
+			}
+		}
+		distanceCount += computed;
+		savedCount += count - computed;
+		lastRow = best;
+		return best;
+	}
+}
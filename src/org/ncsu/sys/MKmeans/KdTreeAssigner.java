@@ -0,0 +1,201 @@
+package org.ncsu.sys.MKmeans;
+
+import java.util.Arrays;
+
+/**
+ * Exact nearest-centroid search through a kd-tree over the centroids
+ * (KM.assignment=kdtree). The tree is stored in flat arrays: inner nodes
+ * split on the coordinate of widest spread at the median, leaves hold up to
+ * LEAF_SIZE centroid rows. A query descends to the leaf of the vector first
+ * and then backtracks only into subtrees whose splitting plane is closer
+ * than the best distance found.
+ *
+ * The tree pays off for low dimensions and many centroids, see
+ * {@link #isPreferred(int, int)}.
+ */
+public class KdTreeAssigner extends Assigner {
+
+	private static final int LEAF_SIZE = 8;
+
+	/*
+	 * Crossover measured with MKmeansTest.AssignerBenchmark on clustered
+	 * input (ns per vector, linear scan vs tree): at d = 2 the tree wins from
+	 * k = 32 (260 vs 181), at d = 4 from k = 64 (576 vs 502), at d = 8 only
+	 * from k = 512 (7771 vs 7418), and never at d >= 16.
+	 */
+	public static final int MAX_DIMENSION = 8;
+	public static final int MIN_K_2D = 32;
+	public static final int MIN_K_4D = 64;
+	public static final int MIN_K_8D = 512;
+
+	private final int[] rows;
+	private int[] splitDim;
+	private int[] splitVal;
+	private int[] left;
+	private int[] right;
+	private int[] start;
+	private int[] end;
+	private int nodeCount;
+	private final int count;
+
+	public KdTreeAssigner(VectorBlock centroids) {
+		super(centroids);
+		count = centroids.getCount();
+		rows = new int[count];
+		for(int i = 0; i < count; i++)
+			rows[i] = i;
+		int maxNodes = Math.max(1, 2 * (count / LEAF_SIZE + 1) * 2);
+		splitDim = new int[maxNodes];
+		splitVal = new int[maxNodes];
+		left = new int[maxNodes];
+		right = new int[maxNodes];
+		start = new int[maxNodes];
+		end = new int[maxNodes];
+		nodeCount = 0;
+		build(0, count);
+	}
+
+	private KdTreeAssigner(KdTreeAssigner other) {
+		super(other.centroids);
+		count = other.count;
+		rows = other.rows;
+		splitDim = other.splitDim;
+		splitVal = other.splitVal;
+		left = other.left;
+		right = other.right;
+		start = other.start;
+		end = other.end;
+		nodeCount = other.nodeCount;
+	}
+
+	@Override
+	public Assigner newWorker() {
+		return new KdTreeAssigner(this);
+	}
+
+	/**
+	 * @return true if the kd-tree is expected to beat a linear scan for k
+	 * centroids of the given dimension
+	 */
+	public static boolean isPreferred(int k, int dimension) {
+		if(dimension > MAX_DIMENSION)
+			return false;
+		if(dimension <= 2)
+			return k >= MIN_K_2D;
+		else if(dimension <= 4)
+			return k >= MIN_K_4D;
+		return k >= MIN_K_8D;
+	}
+
+	private int build(int from, int to) {
+		int node = nodeCount++;
+		if(node == splitDim.length)
+			grow();
+		start[node] = from;
+		end[node] = to;
+		left[node] = right[node] = -1;
+		if(to - from <= LEAF_SIZE)
+			return node;
+
+		int[] cData = centroids.getData();
+		int bestDim = 0;
+		int bestSpread = -1;
+		for(int d = 0; d < dimension; d++){
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			for(int i = from; i < to; i++){
+				int v = cData[rows[i] * dimension + d];
+				if(v < min) min = v;
+				if(v > max) max = v;
+			}
+			if(max - min > bestSpread){
+				bestSpread = max - min;
+				bestDim = d;
+			}
+		}
+		if(bestSpread == 0)
+			return node;
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, bestDim);
+		splitDim[node] = bestDim;
+		splitVal[node] = cData[rows[mid] * dimension + bestDim];
+		int l = build(from, mid);
+		int r = build(mid, to);
+		left[node] = l;
+		right[node] = r;
+		return node;
+	}
+
+	private void grow() {
+		int n = splitDim.length * 2;
+		splitDim = Arrays.copyOf(splitDim, n);
+		splitVal = Arrays.copyOf(splitVal, n);
+		left = Arrays.copyOf(left, n);
+		right = Arrays.copyOf(right, n);
+		start = Arrays.copyOf(start, n);
+		end = Arrays.copyOf(end, n);
+	}
+
+	/**
+	 * Quickselect on rows[lo..hi] so that rows[k] holds the median along dim,
+	 * everything before it is not greater and everything after it not less.
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		int[] cData = centroids.getData();
+		while(lo < hi){
+			int pivot = cData[rows[(lo + hi) >>> 1] * dimension + dim];
+			int i = lo, j = hi;
+			while(i <= j){
+				while(cData[rows[i] * dimension + dim] < pivot) i++;
+				while(cData[rows[j] * dimension + dim] > pivot) j--;
+				if(i <= j){
+					int t = rows[i]; rows[i] = rows[j]; rows[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private int best;
+	private long bestDist2;
+	private int computed;
+
+	@Override
+	public int getNearestRow(int[] data, int offset) {
+		best = -1;
+		bestDist2 = Long.MAX_VALUE;
+		computed = 0;
+		search(0, data, offset);
+		distanceCount += computed;
+		savedCount += count - computed;
+		return best;
+	}
+
+	private void search(int node, int[] data, int offset) {
+		if(left[node] < 0){
+			int[] cData = centroids.getData();
+			for(int i = start[node]; i < end[node]; i++){
+				int c = rows[i];
+				long dist2 = MKMUtils.getDistance(data, offset, cData, c * dimension, dimension);
+				computed++;
+				if(dist2 < bestDist2 || (dist2 == bestDist2 && c < best)){
+					best = c;
+					bestDist2 = dist2;
+				}
+			}
+			return;
+		}
+		long diff = (long)data[offset + splitDim[node]] - splitVal[node];
+		int near = diff < 0 ? left[node] : right[node];
+		int far = diff < 0 ? right[node] : left[node];
+		search(near, data, offset);
+		if(diff * diff <= bestDist2)
+			search(far, data, offset);
+	}
+}
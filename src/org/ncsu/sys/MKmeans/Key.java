@@ -5,10 +5,18 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
 
+/**
+ * Fixed-width key: the task index and the vector type value, two big-endian
+ * ints (8 bytes). The registered {@link Comparator} orders serialized keys
+ * without deserializing them.
+ */
 public class Key implements WritableComparable {
 
+	public static final int SERIALIZED_SIZE = 8;
+
 	private int TaskIndex;
 	private VectorType type;
 	
@@ -59,10 +67,47 @@ public class Key implements WritableComparable {
 		//CENTROID types are greater than REGULAR types
 		else if(this.getType().getTypeVal() < key.getType().getTypeVal())
 			return -1;
-		else if(this.getType().getTypeVal() < key.getType().getTypeVal())
+		else if(this.getType().getTypeVal() > key.getType().getTypeVal())
 			return 1;
 		else
 			return 0;
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Key))
+			return false;
+		return compareTo(o) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * TaskIndex + (type == null ? 0 : type.getTypeVal());
+	}
+
+	/**
+	 * Compares the serialized form of two keys, same order as compareTo.
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(Key.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			int task1 = readInt(b1, s1);
+			int task2 = readInt(b2, s2);
+			if(task1 != task2)
+				return task1 < task2 ? -1 : 1;
+			int type1 = readInt(b1, s1 + 4);
+			int type2 = readInt(b2, s2 + 4);
+			return type1 < type2 ? -1 : (type1 == type2 ? 0 : 1);
+		}
+	}
+
+	static {
+		WritableComparator.define(Key.class, new Comparator());
+	}
+
 }
@@ -0,0 +1,33 @@
+package org.ncsu.sys.MKmeans;
+
+/**
+ * Scans every centroid for every vector.
+ */
+public class LinearAssigner extends Assigner {
+
+	public LinearAssigner(VectorBlock centroids) {
+		super(centroids);
+	}
+
+	@Override
+	public int getNearestRow(int[] data, int offset) {
+		int nearest = -1;
+		long shortestDistance = Long.MAX_VALUE;
+		int[] cData = centroids.getData();
+		int count = centroids.getCount();
+		for(int c = 0; c < count; c++){
+			long distance = MKMUtils.getDistance(data, offset, cData, c * dimension, dimension);
+			if(distance < shortestDistance){
+				nearest = c;
+				shortestDistance = distance;
+			}
+		}
+		distanceCount += count;
+		return nearest;
+	}
+
+	@Override
+	public Assigner newWorker() {
+		return new LinearAssigner(centroids);
+	}
+}
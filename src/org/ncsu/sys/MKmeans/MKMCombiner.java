@@ -0,0 +1,44 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
+
+/**
+ * Merges the partial centroids of a centroid index on the map side, so the
+ * shuffle carries one PartialCentroid per index and spill instead of one per
+ * record or block. Kept apart from MKMReducer, which turns the sums into
+ * centroids.
+ */
+public class MKMCombiner extends Reducer<IntWritable, PartialCentroid, IntWritable, PartialCentroid> {
+
+	//IntWritable key + dimension, centroidIdx and count ints
+	private static final int FIXED_RECORD_BYTES = 16;
+
+	public void reduce(IntWritable key, Iterable<PartialCentroid> values, Context context)
+			throws IOException, InterruptedException {
+		PartialCentroid merged = null;
+		long mergedAway = 0;
+		for (PartialCentroid val : values) {
+			if(merged == null){
+				//the framework reuses val, so keep a copy
+				merged = new PartialCentroid(val.getDimension());
+				merged.copy(val);
+			}
+			else{
+				merged.addVector(val);
+				mergedAway++;
+			}
+		}
+		if(merged == null)
+			return;
+		context.write(key, merged);
+		if(mergedAway > 0){
+			context.getCounter(Counter.COMBINED_PARTIAL_CENTROIDS).increment(mergedAway);
+			context.getCounter(Counter.SHUFFLE_BYTES_SAVED).increment(
+					mergedAway * (FIXED_RECORD_BYTES + 8L * merged.getDimension()));
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
+
+/**
+ * Writes the partitions listed in its split, one "partition count" line
+ * each, for {@link MKMDataGenerator}. A partition goes to the task's work
+ * directory under its final name, so only the file of the committed attempt
+ * ends up in the data directory.
+ */
+public class MKMDataGenMapper extends Mapper<LongWritable, Text, NullWritable, NullWritable> {
+
+	private MKMDataGenerator generator;
+
+	public void setup(Context context) throws IOException {
+		generator = new MKMDataGenerator(context.getConfiguration(),
+				FileOutputFormat.getOutputPath(context).getFileSystem(context.getConfiguration()));
+	}
+
+	public void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+		String[] fields = line.toString().split("\t");
+		int partition = Integer.parseInt(fields[0]);
+		long vectors = Long.parseLong(fields[1]);
+		Path file = new Path(FileOutputFormat.getWorkOutputPath(context), "" + partition);
+		generator.writePartition(partition, vectors, file, context);
+		context.getCounter(Counter.GENERATED_VECTORS).increment(vectors);
+	}
+}
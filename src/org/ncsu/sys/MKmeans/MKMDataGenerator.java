@@ -0,0 +1,349 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Progressable;
+import org.ncsu.sys.MKmeans.MKMTypes.Distribution;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.ValuesFormat;
+import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
+
+/**
+ * Synthetic input for large runs (KM.generator=local or mapreduce), in the
+ * same layout as MKMUtils.prepareInput.
+ *
+ * The vector count is shared among the partitions by the ratio arguments
+ * of the driver. Every partition is drawn from its own SplittableRandom,
+ * seeded from KM.gen.seed and the partition number, so partitions differ
+ * and the same settings always give the same data whatever runs them. A
+ * partition is streamed to its file in Values records of at most
+ * KM.gen.batchSize vectors (at most KM.recordBatchSize with
+ * KM.vectorPerRecord, which keeps the partitions splittable), so a task
+ * only ever holds one batch. Partitions are
+ * written by KM.gen.threads threads (default: one per core) of the driver,
+ * or by a map-only job with one task per partition ({@link MKMDataGenMapper}).
+ *
+ * KM.gen.distribution picks the data:
+ * - uniform: every coordinate uniform in [0, KM.gen.range);
+ * - gaussian: a mixture of KM.gen.clusters (default KM.k) gaussians around
+ *   centers uniform in the same range, with a standard deviation of
+ *   KM.gen.spread (default 0.1) times range / clusters^(1/d);
+ * - skewed: the same mixture with Zipf component weights of exponent
+ *   KM.gen.skew (default 1.5).
+ * The mixture centers are written to KM.gen.trueCentersDir. The initial
+ * centers are the first k vectors generated, as with prepareInput.
+ */
+public class MKMDataGenerator {
+
+	private static final boolean DEBUG = true;
+
+	private final Configuration conf;
+	private final FileSystem fs;
+	private final int dimension;
+	private final long seed;
+	private final Distribution distribution;
+	private final int range;
+	private final double sigma;
+	private final int batchSize;
+	private final ValuesFormat format;
+	private final int[][] centers;
+	private final double[] cumulative;
+
+	public MKMDataGenerator(Configuration conf, FileSystem fs) throws IOException {
+		this.conf = conf;
+		this.fs = fs;
+		this.dimension = conf.getInt("KM.dimension", 2);
+		this.seed = conf.getLong("KM.gen.seed", 1000);
+		this.distribution = Distribution.getType(conf.get("KM.gen.distribution", "uniform"));
+		this.range = conf.getInt("KM.gen.range", 1 << 20);
+		int batchSize = Math.max(1, conf.getInt("KM.gen.batchSize", 65536));
+		//small records have a sync marker between them, see MKMUtils.prepareInput
+		if(conf.getBoolean("KM.vectorPerRecord", false))
+			batchSize = Math.min(batchSize, Math.max(1, conf.getInt("KM.recordBatchSize", 1024)));
+		this.batchSize = batchSize;
+		this.format = ValuesFormat.getFormat(conf.get("KM.compactFormat", "none"));
+		if(conf.getInt("KM.sparseNnz", 0) > 0)
+			throw new IOException("Sparse vectors are only written by MKMUtils.prepareInput");
+		if(range < 1)
+			throw new IOException("KM.gen.range must be positive, got " + range);
+		int clusters = conf.getInt("KM.gen.clusters", conf.getInt("KM.k", 6));
+		if(distribution == Distribution.UNIFORM){
+			centers = null;
+			cumulative = null;
+			sigma = 0;
+		}
+		else{
+			//every task derives the same mixture from the seed
+			Random random = new Random(seed);
+			centers = new int[clusters][dimension];
+			for(int c = 0; c < clusters; c++)
+				for(int j = 0; j < dimension; j++)
+					centers[c][j] = random.nextInt(range);
+			double skew = distribution == Distribution.SKEWED ? conf.getFloat("KM.gen.skew", 1.5f) : 0;
+			cumulative = new double[clusters];
+			double total = 0;
+			for(int c = 0; c < clusters; c++){
+				total += 1.0 / Math.pow(c + 1, skew);
+				cumulative[c] = total;
+			}
+			for(int c = 0; c < clusters; c++)
+				cumulative[c] /= total;
+			sigma = conf.getFloat("KM.gen.spread", 0.1f) * range / Math.pow(clusters, 1.0 / dimension);
+		}
+	}
+
+	/**
+	 * Writes count vectors into dataDir/0 .. dataDir/(ratio.length - 1), the
+	 * first k of them to centersIn, and the mixture centers if any.
+	 */
+	public void generate(long count, int k, int[] ratio, Path dataDir, Path centersIn) throws Exception {
+		long start = System.nanoTime();
+		long[] counts = partitionCounts(count, ratio);
+		fs.delete(dataDir, true);
+		if("mapreduce".equalsIgnoreCase(conf.get("KM.generator")))
+			runJob(counts, dataDir);
+		else
+			runLocal(counts, dataDir);
+		writeInitialCenters(counts, k, centersIn);
+		if(centers != null)
+			writeTrueCenters(fs.makeQualified(new Path(conf.get("KM.gen.trueCentersDir", "tmp/kmeans/trueCenters"))));
+		System.out.println("Generated " + count + " " + distribution.toString().toLowerCase() + " vectors in "
+				+ counts.length + " partitions in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * @return the vectors of every partition, in proportion to ratio
+	 */
+	public static long[] partitionCounts(long count, int[] ratio) {
+		long sum = 0;
+		for(int r : ratio)
+			sum += Math.max(0, r);
+		long[] counts = new long[ratio.length];
+		long cum = 0;
+		long assigned = 0;
+		for(int i = 0; i < ratio.length; i++){
+			cum += Math.max(0, ratio[i]);
+			long upTo = sum == 0 ? count * (i + 1) / ratio.length : (long)((double)count * cum / sum);
+			if(i == ratio.length - 1)
+				upTo = count;
+			counts[i] = upTo - assigned;
+			assigned = upTo;
+		}
+		return counts;
+	}
+
+	private void runLocal(long[] counts, final Path dataDir) throws Exception {
+		int threads = conf.getInt("KM.gen.threads", 0);
+		if(threads < 1)
+			threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, counts.length));
+		try {
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for(int i = 0; i < counts.length; i++){
+				final int partition = i;
+				final long vectors = counts[i];
+				results.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return writePartition(partition, vectors, new Path(dataDir, "" + partition), null);
+					}
+				}));
+			}
+			for(Future<Long> result : results)
+				result.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Generating a partition failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * One map task per partition, listed as "partition count" lines.
+	 */
+	private void runJob(long[] counts, Path dataDir) throws Exception {
+		Path workDir = fs.makeQualified(new Path(conf.get("KM.gen.workDir", "tmp/kmeans/gen")));
+		fs.delete(workDir, true);
+		Path list = new Path(workDir, "partitions");
+		Writer out = new OutputStreamWriter(fs.create(list, true), "UTF-8");
+		try {
+			for(int i = 0; i < counts.length; i++)
+				out.write(i + "\t" + counts[i] + "\n");
+		} finally {
+			out.close();
+		}
+		Job job = Job.getInstance(conf, "kmeans-generate");
+		job.setJarByClass(MKMDataGenerator.class);
+		job.setInputFormatClass(NLineInputFormat.class);
+		NLineInputFormat.setNumLinesPerSplit(job, 1);
+		FileInputFormat.addInputPath(job, list);
+		job.setMapperClass(MKMDataGenMapper.class);
+		job.setNumReduceTasks(0);
+		//the partitions are side files of the tasks, no part files
+		LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(NullWritable.class);
+		FileOutputFormat.setOutputPath(job, fs.makeQualified(dataDir));
+		if(!job.waitForCompletion(true))
+			throw new IOException("Data generation job failed");
+		fs.delete(workDir, true);
+	}
+
+	/**
+	 * Streams one partition to file.
+	 *
+	 * @param progress told after every record, may be null
+	 * @return the number of vectors written
+	 */
+	public long writePartition(int partition, long vectors, Path file, Progressable progress) throws IOException {
+		Source source = new Source(partition);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file, Key.class,
+				Values.class, CompressionType.NONE);
+		try {
+			Key key = new Key(partition, VectorType.REGULAR);
+			int[] row = new int[dimension];
+			VectorBlock block = new VectorBlock(dimension, (int)Math.min(batchSize, Math.max(1, vectors)));
+			Values values = new Values();
+			values.setFormat(format);
+			for(long n = 0; n < vectors; ){
+				int rows = (int)Math.min(batchSize, vectors - n);
+				block.clear();
+				for(int i = 0; i < rows; i++){
+					source.next(row);
+					block.add(row, MKMTypes.UNDEF_VAL);
+				}
+				values.setBlock(block);
+				writer.append(key, values);
+				n += rows;
+				if(progress != null)
+					progress.progress();
+			}
+		} finally {
+			writer.close();
+		}
+		if(DEBUG) System.out.println("Done writing " + vectors + " vectors to " + file);
+		return vectors;
+	}
+
+	/**
+	 * Regenerates the first k vectors, taking the partitions in order.
+	 */
+	private void writeInitialCenters(long[] counts, int k, Path centersIn) throws IOException {
+		fs.delete(centersIn, true);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, centersIn, Key.class, Value.class,
+				CompressionType.NONE);
+		try {
+			int idx = 0;
+			for(int p = 0; p < counts.length && idx < k; p++){
+				Source source = new Source(p);
+				for(long n = 0; n < counts[p] && idx < k; n++){
+					Value center = new Value(dimension, idx++);
+					source.next(center.getCoordinates());
+					writer.append(new Key(p, VectorType.CENTROID), center);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Written like the centroids of an iteration, so both read the same way.
+	 */
+	private void writeTrueCenters(Path dir) throws IOException {
+		fs.delete(dir, true);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, new Path(dir, "part-r-00000"), Key.class,
+				Value.class, CompressionType.NONE);
+		try {
+			for(int c = 0; c < centers.length; c++){
+				Value center = new Value(dimension, c);
+				System.arraycopy(centers[c], 0, center.getCoordinates(), 0, dimension);
+				writer.append(new Key(0, VectorType.CENTROID), center);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * The vectors of one partition.
+	 */
+	private class Source {
+		private final SplittableRandom random;
+		private boolean haveSpare;
+		private double spare;
+
+		Source(int partition) {
+			//the golden-ratio step keeps the seeds of neighbouring partitions apart
+			random = new SplittableRandom(seed + (partition + 1) * 0x9E3779B97F4A7C15L);
+		}
+
+		void next(int[] row) {
+			if(centers == null){
+				for(int j = 0; j < dimension; j++)
+					row[j] = random.nextInt(range);
+				return;
+			}
+			int[] center = centers[component()];
+			for(int j = 0; j < dimension; j++)
+				row[j] = (int)Math.round(center[j] + sigma * gaussian());
+		}
+
+		private int component() {
+			double u = random.nextDouble();
+			int lo = 0;
+			int hi = cumulative.length - 1;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(cumulative[mid] < u)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * Marsaglia's polar method, one spare value kept for the next call.
+		 */
+		private double gaussian() {
+			if(haveSpare){
+				haveSpare = false;
+				return spare;
+			}
+			double u, v, s;
+			do {
+				u = 2 * random.nextDouble() - 1;
+				v = 2 * random.nextDouble() - 1;
+				s = u * u + v * v;
+			} while(s >= 1 || s == 0);
+			double scale = Math.sqrt(-2 * Math.log(s) / s);
+			spare = v * scale;
+			haveSpare = true;
+			return u * scale;
+		}
+	}
+}
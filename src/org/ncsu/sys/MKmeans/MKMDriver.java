@@ -1,22 +1,29 @@
 package org.ncsu.sys.MKmeans;
 
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskCounter;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.ncsu.sys.MKmeans.MKMTypes.CoordinateType;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
 
 public class MKMDriver {
 		
@@ -33,6 +40,8 @@ public class MKMDriver {
 		private static final boolean DEBUG = true;
 		
 		private static FileSystem fs;
+		//largest centroid move of the last iteration, see isConverged(Job, Path)
+		private long lastMaxShift;
 		private static JobConf conf = new JobConf();
 
 		public static void main(String[] args) throws Exception {
@@ -47,8 +56,7 @@ public class MKMDriver {
 			      return;
 			}
 
-			conf = new JobConf();
-			int count = Integer.parseInt(remainingArgs[0]);
+			long count = Long.parseLong(remainingArgs[0]);
 			int k = Integer.parseInt(remainingArgs[1]);
 			int dimension = Integer.parseInt(remainingArgs[2]);
 			int iterations = Integer.parseInt(remainingArgs[3]);
@@ -67,6 +75,20 @@ public class MKMDriver {
 			conf.setInt("KM.k", k);
 			conf.setInt("KM.dimension", dimension);
 			conf.setInt("KM.mapTaskCount", taskCount);
+			//sparse vectors are only written one per record
+			if(conf.getInt("KM.sparseNnz", 0) > 0)
+				conf.setBoolean("KM.vectorPerRecord", true);
+			if(CoordinateType.getType(conf.get("KM.coordinates", "int")) == CoordinateType.DOUBLE){
+				//double centroids are only understood by the MapReduce loop
+				if(conf.getInt("KM.sparseNnz", 0) > 0 || !"full".equalsIgnoreCase(conf.get("KM.mode", "full"))
+						|| !"mapreduce".equalsIgnoreCase(conf.get("KM.engine", "mapreduce"))
+						|| "kmeans||".equalsIgnoreCase(conf.get("KM.init", "first")))
+					throw new IllegalArgumentException("KM.coordinates=double needs KM.engine=mapreduce, KM.mode=full, "
+							+ "dense vectors and KM.init=first");
+				//DoubleValue vectors are only written one per record
+				if("legacy".equalsIgnoreCase(conf.get("KM.generator", "legacy")))
+					conf.setBoolean("KM.vectorPerRecord", true);
+			}
 //			conf.set("KM.centerIn", center.toString());
 //		    conf.set("KM.centerOut", centerOut.toString());
 		    String inputDataPath = fs.makeQualified(new Path(KM_DATA_INPUT_PATH)).toString();
@@ -81,22 +103,70 @@ public class MKMDriver {
 		    conf.setNumMapTasks(taskCount);
 		    
 		    fs.delete(new Path(tempClusterDirPath), true);
-			fs.delete(new Path(outPath), true);
+			//KM.resume=true continues from the last checkpoint, see RunManifest
+			boolean resume = conf.getBoolean("KM.resume", false)
+					&& RunManifest.load(fs, new Path(outPath)) != null;
+			if(resume)
+				System.out.println("## resuming the run in " + outPath + ", input and seeds are kept");
+			else{
+				fs.delete(new Path(outPath), true);
 			
-			//write input data and centers to the file paths accordingly
-			// NOTE: Make sure centers have a cluster identifier with it.
-			Path[] paths = new Path[taskCount];
-			for(int pj = 0; pj < paths.length; pj++){
-				paths[pj] = new Path(KM_DATA_INPUT_PATH, ""+pj);
+				//write input data and centers to the file paths accordingly
+				// NOTE: Make sure centers have a cluster identifier with it.
+				Path[] paths = new Path[taskCount];
+				for(int pj = 0; pj < paths.length; pj++){
+					paths[pj] = new Path(KM_DATA_INPUT_PATH, ""+pj);
+				}
+				String generator = conf.get("KM.generator", "legacy");
+				if("local".equalsIgnoreCase(generator) || "mapreduce".equalsIgnoreCase(generator)){
+					//parallel, streamed, one seed per partition
+					new MKMDataGenerator(conf, fs).generate(count, k, ratio, fs.makeQualified(new Path(KM_DATA_INPUT_PATH)),
+							fs.makeQualified(new Path(KM_CENTER_INPUT_PATH)));
+				}
+				else if("astro".equalsIgnoreCase(generator)){
+					//skewed subspace quotas; the total follows from them, not from count
+					MKMUtils.prepareAstroPhyInput((int)Math.min(count, Integer.MAX_VALUE), k, dimension,
+							conf.getInt("KM.astro.segPerDim", 2), conf.getInt("KM.astro.maxNum", 1 << 20), taskCount,
+							conf, paths, new Path(KM_CENTER_INPUT_PATH), fs, conf.getInt("KM.astro.start", 1000),
+							conf.getInt("KM.astro.diff", 1000), conf.getBoolean("KM.astro.linear", true));
+				}
+				else{
+					if(count > Integer.MAX_VALUE)
+						throw new IllegalArgumentException("Use KM.generator=local or mapreduce for more than "
+								+ Integer.MAX_VALUE + " vectors");
+					MKMUtils.prepareInput((int)count, k, dimension, taskCount, conf, paths, new Path(KM_CENTER_INPUT_PATH), fs, ratio);
+				}
+				if("kmeans||".equalsIgnoreCase(conf.get("KM.init", "first"))){
+					//replace the first-k centers by k-means|| seeds
+					MKMSeeder seeder = new MKMSeeder(conf, fs);
+					seeder.seed(fs.makeQualified(new Path(KM_CENTER_INPUT_PATH)),
+							fs.makeQualified(new Path(KM_DATA_DIR, "seed")), k);
+				}
 			}
-			MKMUtils.prepareInput(count, k, dimension, taskCount, conf, paths, new Path(KM_CENTER_INPUT_PATH), fs, ratio);
 			long start = System.nanoTime();
-			driver.kmeans(iterations, convergenceDelta);
+			if("minibatch".equalsIgnoreCase(conf.get("KM.mode", "full"))){
+				//samples every iteration instead of a full pass
+				MKMMiniBatch miniBatch = new MKMMiniBatch(conf, fs);
+				miniBatch.kmeans(fs.makeQualified(new Path(KM_CENTER_INPUT_PATH)), new Path(outPath),
+						iterations, convergenceDelta);
+			}
+			else if("local".equalsIgnoreCase(conf.get("KM.engine", "mapreduce"))){
+				//small inputs: iterate in this JVM instead of one job per iteration
+				MKMLocalEngine engine = new MKMLocalEngine(conf, fs);
+				engine.kmeans(fs.makeQualified(new Path(KM_CENTER_INPUT_PATH)), new Path(outPath),
+						iterations, convergenceDelta);
+			}
+			else
+				driver.kmeans(iterations, convergenceDelta);
 			long end = System.nanoTime();
 			System.out.println("Job completed successfully. Time taken: " + (end -start));
 		}
 		
-		public void kmeans(int maxIterations, int convergenceDelta){
+		/**
+		 * Runs the MapReduce iterations; a failed job or a lost centroid
+		 * fails the run, after the last complete iteration was checkpointed.
+		 */
+		public void kmeans(int maxIterations, int convergenceDelta) throws Exception {
 			boolean converged = false;
 			int iteration = 1;
 			Path centersIn = fs.makeQualified(new Path(KM_CENTER_INPUT_PATH));
@@ -107,137 +177,187 @@ public class MKMDriver {
 //			} catch (IOException e1) {
 //				e1.printStackTrace();
 //			}
-			try {
-				List<Value> oldCenters = null;
-				while(!converged && iteration <= maxIterations){
-					
-						Path centersOut = fs.makeQualified(new Path(KM_CENTER_OUTPUT_PATH, "iteration-" + iteration));
-						fs.delete(centersOut, true);
-						//if(oldCenters == null)
-						oldCenters = MKMUtils.getCentroidsFromFile(centersIn, false);
-						this.kmeansJob(centersIn, centersOut, iteration);
-						List<Value> newCenters = MKMUtils.getCentroidsFromFile(centersIn, false);
-						converged = isConverged(oldCenters, newCenters, convergenceDelta);
-						if(!converged){
-//							centersIn = centersOut;
-							System.out.println("## not converged, going for the next iteration with input from "+ centersIn.toString());
-						}
-						iteration++;
-						fs.delete(new Path(conf.get("KM.tempClusterDir")), true);
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			conf.setInt("KM.convergenceDelta", convergenceDelta);
+			RunReport report = new RunReport(fs, fs.makeQualified(new Path(conf.get("KM.reportDir", KM_DATA_DIR + "/report"))));
+			Path outDir = fs.makeQualified(new Path(KM_CENTER_OUTPUT_PATH));
+			int keep = conf.getInt("KM.checkpoint.keep", 0);
+			RunManifest manifest = conf.getBoolean("KM.resume", false) ? RunManifest.load(fs, outDir) : null;
+			if(manifest != null){
+				manifest.checkCompatible(conf);
+				iteration = manifest.getIteration() + 1;
+				centersIn = manifest.getCenters();
+				converged = manifest.isConverged();
+				report.resume(manifest.getIteration());
+				if(manifest.getBalancePlan() != null)
+					conf.set("KM.balance.plan", manifest.getBalancePlan());
+				System.out.println("## resuming at iteration " + iteration + " with input from " + centersIn);
 			}
+			else
+				manifest = RunManifest.create(fs, outDir, conf, centersIn);
+			while(!converged && iteration <= maxIterations){
+				
+					Path centersOut = new Path(outDir, RunManifest.ITERATION_PREFIX + iteration);
+					fs.delete(centersOut, true);
+					conf.set("KM.inputCenterPath", centersIn.toString());
+					long start = System.currentTimeMillis();
+					Job job = this.kmeansJob(centersIn, centersOut, iteration);
+					long duration = System.currentTimeMillis() - start;
+					//the reducers measured the shift, see MKMReducer
+					converged = isConverged(job, centersOut);
+					report.addIteration(iteration, duration, job.getCounters(), lastMaxShift,
+							convergenceDelta, converged);
+					if(!converged && conf.getBoolean("KM.balance", false))
+						planSplits(centersOut, iteration + 1);
+					//a failure from here on only repeats the next iteration
+					manifest.commit(iteration, centersOut, converged, lastMaxShift, conf.get("KM.balance.plan"));
+					manifest.retain(keep);
+					//the reducers' part files are the next iteration's centroids
+					centersIn = centersOut;
+					if(!converged){
+						System.out.println("## not converged, going for the next iteration with input from "+ centersIn.toString());
+					}
+					iteration++;
+					fs.delete(new Path(conf.get("KM.tempClusterDir")), true);
+			}
+			System.out.println("Final centroids at " + centersIn.toString());
 		}
 		
-		private boolean isConverged(List<Value> oldCentroids, List<Value> newCentroids, int convergenceDelta) throws Exception {
-			boolean converged = true;
-//			if(newCentroids.isEmpty()){
-//				newCentroids = KMUtils.getCentroidsFromFile(centersOut, true);
-//			}
-//			if(newCentroids.isEmpty()){
-//				if(DEBUG) System.out.println("Screw this! I am trying again with a normal read");
-//				newCentroids = KMUtils.getCentroidsFromFile(centersOut, false);
-//			}
-			Hashtable<Integer, Value> oldCentroidMap = new Hashtable<Integer,Value>();
-			Hashtable<Integer, Value> newCentroidMap = new Hashtable<Integer,Value>();
-			
-			if(DEBUG) System.out.println("***OldCentroids***");
-			for(Value centroid : oldCentroids){
-				oldCentroidMap.put(centroid.getCentroidIdx(), centroid);
-				if(DEBUG) System.out.println(centroid);
+		/**
+		 * Re-chunks the input for the next iteration from the cost the map
+		 * tasks measured in this one, see {@link SplitPlanner}.
+		 */
+		private void planSplits(Path centersOut, int nextIteration) throws IOException {
+			SplitPlanner planner = new SplitPlanner(fs);
+			List<SplitPlanner.Chunk> measured = planner.readStats(centersOut);
+			if(measured.isEmpty()){
+				conf.unset("KM.balance.plan");
+				return;
 			}
-			
-			if(DEBUG) System.out.println("***NewCentroids***");
-			for(Value centroid : newCentroids){
-				newCentroidMap.put(centroid.getCentroidIdx(), centroid);
-				if(DEBUG) System.out.println(centroid);
+			int tasks = 0;
+			for(FileStatus status : fs.listStatus(centersOut)){
+				if(status.getPath().getName().startsWith(SplitPlanner.STATS_FILE_PREFIX))
+					tasks++;
 			}
-			
-			for(Integer key : oldCentroidMap.keySet()){
-				if(!isConverged(oldCentroidMap.get(key), newCentroidMap.get(key), convergenceDelta)){
-					converged = false;
-					break;
+			List<List<SplitPlanner.Chunk>> groups = planner.plan(measured, conf.getInt("KM.balance.tasks", tasks),
+					conf.getBoolean("KM.vectorPerRecord", false), conf.getLong("KM.balance.minChunkBytes", 1 << 20));
+			Path plan = fs.makeQualified(new Path(KM_DATA_DIR + "/balance", "plan-" + nextIteration));
+			planner.writePlan(groups, plan);
+			conf.set("KM.balance.plan", plan.toString());
+			if(DEBUG){
+				StringBuilder costs = new StringBuilder();
+				for(List<SplitPlanner.Chunk> group : groups){
+					double cost = 0;
+					for(SplitPlanner.Chunk chunk : group)
+						cost += chunk.cost;
+					costs.append(" ").append(Math.round(cost / 1000000)).append("ms/").append(group.size());
 				}
+				System.out.println("## planned " + groups.size() + " map tasks (cost/ranges):" + costs);
 			}
-			
-			return converged;
 		}
-		
-		private boolean isConverged(Path centersIn, Path centersOut, int convergenceDelta, boolean isFirstIter) throws Exception{
-			boolean converged = true;
-			List<Value> oldCentroids = MKMUtils.getCentroidsFromFile(centersIn, !isFirstIter);
-			List<Value> newCentroids = MKMUtils.getCentroidsFromFile(centersOut, true);
-			Hashtable<Integer, Value> oldCentroidMap = new Hashtable<Integer,Value>();
-			Hashtable<Integer, Value> newCentroidMap = new Hashtable<Integer,Value>();
-			
-			if(DEBUG) System.out.println("***OldCentroids***");
-			for(Value centroid : oldCentroids){
-				oldCentroidMap.put(centroid.getCentroidIdx(), centroid);
-				if(DEBUG) System.out.println(centroid);
-			}
-			
-			if(DEBUG) System.out.println("***NewCentroids***");
-			for(Value centroid : newCentroids){
-				newCentroidMap.put(centroid.getCentroidIdx(), centroid);
-				if(DEBUG) System.out.println(centroid);
+
+		/**
+		 * Decides convergence from the reducers' shift counters; the largest
+		 * move is read from their tiny _shift-r-* summaries.
+		 */
+		private boolean isConverged(Job job, Path centersOut) throws Exception {
+			Counters counters = job.getCounters();
+			long unconverged = counters.findCounter(Counter.UNCONVERGED_CENTROIDS).getValue();
+			long written = counters.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS).getValue();
+			long totalShift = counters.findCounter(Counter.TOTAL_SHIFT).getValue();
+			int k = conf.getInt("KM.k", 6);
+			//the reducers keep centroids without vectors, so fewer means lost ones
+			if(written < k){
+				throw new IOException("Only " + written + " of " + k + " centroids written to " + centersOut);
 			}
-			
-			for(Integer key : oldCentroidMap.keySet()){
-				if(!isConverged(oldCentroidMap.get(key), newCentroidMap.get(key), convergenceDelta)){
-					converged = false;
-					break;
+			long maxShift = 0;
+			for(FileStatus status : fs.listStatus(centersOut)){
+				if(!status.getPath().getName().startsWith(MKMReducer.SHIFT_FILE_PREFIX))
+					continue;
+				FSDataInputStream in = fs.open(status.getPath());
+				try {
+					maxShift = Math.max(maxShift, in.readLong());
+				} finally {
+					in.close();
 				}
 			}
-			
-			return converged;
+			lastMaxShift = maxShift;
+			if(DEBUG) System.out.println("## shift: max " + maxShift + ", total " + totalShift
+					+ ", unconverged centroids " + unconverged);
+			return unconverged == 0;
+		}
+		
+		public Job kmeansJob(Path centersIn, Path centersOut, int iteration) throws Exception{
+			List<Path> inputs = new ArrayList<Path>();
+		    //uncomment the following line when using Phadoop
+		    //if(iteration == 1)
+		    for(int i = 0; i < conf.getInt("KM.mapTaskCount", 2); i++){
+		    	inputs.add(new Path(conf.get("KM.inputDataPath"), ""+i));
+		    }
+		    Job job = createJob(conf, fs, centersIn, centersOut, inputs);
+		    if(conf.getBoolean("KM.balance", false))
+		    	job.setInputFormatClass(BalancedInputFormat.class);
+		    
+		    //TODO: fix all the paths and implement the algo as indicated in the site.
+		    
+			if (!job.waitForCompletion(true))
+				throw new IOException("kmeans job failed in iteration " + iteration);
+			return job;
 		}
 
-		private boolean isConverged(Value oldCentroid, Value newCentroid, int convergenceDelta) throws Exception{
-			if(oldCentroid == null){
-				throw new Exception("Old centroid is null");
-			}
-			else if(newCentroid == null){
-				throw new Exception("New centroid is null");
-			}
-			return MKMUtils.getDistance(oldCentroid.getCoordinates(), 
-						newCentroid.getCoordinates()) <= convergenceDelta;
+		/**
+		 * Picks the input format matching the layout written by prepareInput.
+		 */
+		static void setInputFormat(Job job, Configuration conf) {
+		    if(conf.getBoolean("KM.vectorPerRecord", false)){
+		    	//small records between sync markers: the stock reader splits them at
+		    	//block boundaries, so parallelism follows the data size, not KM.mapTaskCount
+		    	job.setInputFormatClass(SequenceFileInputFormat.class);
+		    	long maxSplitSize = conf.getLong("KM.maxSplitSize", 0);
+		    	if(maxSplitSize > 0)
+		    		FileInputFormat.setMaxInputSplitSize(job, maxSplitSize);
+		    }
+		    else if(conf.getBoolean("KM.chunkedRead", true))
+		    	//bounded memory whatever the size of a Values partition
+		    	job.setInputFormatClass(ChunkedValuesInputFormat.class);
+		    else
+		    	job.setInputFormatClass(SequenceFileInputFormat.class);
 		}
 
-		public void kmeansJob(Path centersIn, Path centersOut, int iteration) throws Exception{
+		/**
+		 * Sets up one k-means iteration over the given input files; shared by
+		 * the full-pass loop and {@link MKMMiniBatch}.
+		 */
+		static Job createJob(Configuration conf, FileSystem fs, Path centersIn, Path centersOut,
+				List<Path> inputs) throws IOException {
 			Job job = Job.getInstance(conf, "kmeans");
 			job.setJarByClass(org.ncsu.sys.MKmeans.MKMDriver.class);
 			
-			job.setNumReduceTasks(1);
-//		    System.out.println("Number of reduce tasks for job1 set to: "+ conf.getInt("KM.R1", 0));
-		    job.setInputFormatClass(SequenceFileInputFormat.class);
+			job.setNumReduceTasks(conf.getInt("KM.reduceTasks", 1));
+		    setInputFormat(job, conf);
 		    job.setOutputFormatClass(SequenceFileOutputFormat.class);
 	 		job.setMapperClass(MKMMapper.class);
 	 		job.setReducerClass(MKMReducer.class);
-//		    job.setPartitionerClass(MKMPartitioner.class);
+	 		if(conf.getBoolean("KM.combiner", true))
+	 			job.setCombinerClass(MKMCombiner.class);
+		    job.setPartitionerClass(MKMPartitioner.class);
 		    job.setMapOutputKeyClass(IntWritable.class);
 		    job.setMapOutputValueClass(org.ncsu.sys.MKmeans.PartialCentroid.class);
-		    job.setOutputKeyClass(IntWritable.class);
-		    job.setOutputValueClass(org.ncsu.sys.MKmeans.PartialCentroid.class);
-		    
+		    job.setOutputKeyClass(Key.class);
+		    job.setOutputValueClass(CoordinateType.getType(conf.get("KM.coordinates", "int")) == CoordinateType.DOUBLE
+		    		? DoubleValue.class : Value.class);
 		    
-		    //uncomment the following line when using Phadoop
-		    //if(iteration == 1)
-		    for(int i = 0; i < conf.getInt("KM.mapTaskCount", 2); i++){
-		    	Path inputFilePath = new Path(conf.get("KM.inputDataPath"), ""+i);
+		    for(Path inputFilePath : inputs){
 		    	if(DEBUG) System.out.println("Adding input path :" + inputFilePath.toString());
 			    FileInputFormat.addInputPath(job, inputFilePath);
 		    }
 		    //No need to add the centers path
 //			    FileInputFormat.addInputPath(job, centersIn);
+		    if(conf.getBoolean("KM.distributedCache", true))
+		    	CentroidCache.publish(job, centersIn, fs);
 			    
 		    
 		    FileOutputFormat.setOutputPath(job, centersOut);
-		    
-		    //TODO: fix all the paths and implement the algo as indicated in the site.
-		    
-			if (!job.waitForCompletion(true))
-				return;
+		    return job;
 		}
 
 }
@@ -0,0 +1,182 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
+
+/**
+ * Runs the whole k-means loop inside the driver JVM (KM.engine=local).
+ *
+ * Every partition under KM.inputDataPath is read once into a VectorBlock;
+ * each iteration then classifies the partitions on KM.localThreads threads
+ * (0, the default, means one per core) and averages the sums, exactly like
+ * one MapReduce iteration with a map task per partition: a centroid that
+ * attracts nothing keeps its position (or, with KM.fillMissing=true, gets
+ * a copy of itself from every partition it is missing in), new centroids
+ * are the truncated means and convergence uses
+ * {@link MKMUtils#isConverged(List, List, int)}. Each iteration's centroids
+ * are written under the output directory in the reducer's layout.
+ *
+ * Suited to inputs that fit in memory; no job is launched per iteration.
+ */
+public class MKMLocalEngine {
+
+	private static final boolean DEBUG = true;
+
+	private final Configuration conf;
+	private final FileSystem fs;
+	private final int dimension;
+	private final int threads;
+	private final AssignmentType assignmentType;
+	private final boolean fillMissing;
+
+	public MKMLocalEngine(Configuration conf, FileSystem fs) {
+		this.conf = conf;
+		this.fs = fs;
+		this.dimension = conf.getInt("KM.dimension", 2);
+		int localThreads = conf.getInt("KM.localThreads", 0);
+		this.threads = localThreads < 1 ? Runtime.getRuntime().availableProcessors() : localThreads;
+		this.assignmentType = AssignmentType.getType(conf.get("KM.assignment", "auto"));
+		this.fillMissing = conf.getBoolean("KM.fillMissing", false);
+	}
+
+	/**
+	 * @return the final centroids
+	 */
+	public List<Value> kmeans(Path centersIn, Path outputDir, int maxIterations, int convergenceDelta)
+			throws IOException {
+		long start = System.nanoTime();
+		List<VectorBlock> partitions = loadPartitions(new Path(conf.get("KM.inputDataPath")));
+		long vectors = 0;
+		for(VectorBlock partition : partitions)
+			vectors += partition.getCount();
+		System.out.println("Loaded " + vectors + " vectors from " + partitions.size()
+				+ " partitions in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		List<Value> centroids = MKMUtils.getCentroidsFromFile(centersIn, false);
+		boolean converged = false;
+		int iteration = 1;
+		while(!converged && iteration <= maxIterations){
+			long iterStart = System.nanoTime();
+			List<Value> newCentroids = iterate(centroids, partitions);
+			converged = MKMUtils.isConverged(centroids, newCentroids, convergenceDelta);
+			writeCentroids(newCentroids, new Path(outputDir, "iteration-" + iteration));
+			if(DEBUG) System.out.println("## local iteration " + iteration + " took "
+					+ (System.nanoTime() - iterStart) / 1000000 + " ms, converged: " + converged);
+			centroids = newCentroids;
+			iteration++;
+		}
+		return centroids;
+	}
+
+	private List<Value> iterate(List<Value> centroids, List<VectorBlock> partitions) throws IOException {
+		Classifier classifier = new Classifier(centroids, dimension, assignmentType, threads);
+		try {
+			PartialCentroid[] total = classifier.newPartials();
+			for(VectorBlock partition : partitions){
+				if(partition.getCount() == 0)
+					continue;
+				PartialCentroid[] partials = classifier.newPartials();
+				classifier.classify(partition, partials);
+				if(fillMissing)
+					classifier.fillMissingCentroids(partials);
+				Classifier.merge(total, partials);
+			}
+			List<Value> newCentroids = new ArrayList<Value>(total.length);
+			for(Value old : centroids){
+				PartialCentroid pCent = total[old.getCentroidIdx()];
+				Value centroid = pCent == null ? null : MKMUtils.computeCentroid(pCent);
+				newCentroids.add(centroid != null ? centroid : old);
+			}
+			return newCentroids;
+		} finally {
+			classifier.close();
+		}
+	}
+
+	private List<VectorBlock> loadPartitions(Path dataDir) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		for(FileStatus status : fs.listStatus(dataDir)){
+			String name = status.getPath().getName();
+			if(status.isFile() && !name.startsWith("_") && !name.startsWith("."))
+				files.add(status.getPath());
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+		try {
+			List<Future<VectorBlock>> loads = new ArrayList<Future<VectorBlock>>();
+			for(final Path file : files){
+				loads.add(pool.submit(new Callable<VectorBlock>() {
+					@Override
+					public VectorBlock call() throws Exception {
+						return loadPartition(file);
+					}
+				}));
+			}
+			List<VectorBlock> partitions = new ArrayList<VectorBlock>(files.size());
+			for(Future<VectorBlock> load : loads)
+				partitions.add(load.get());
+			return partitions;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Reads either layout: Values batches or one Value per record.
+	 * In-band CENTROID records are skipped.
+	 */
+	private VectorBlock loadPartition(Path file) throws IOException {
+		VectorBlock block = new VectorBlock(dimension, 1024);
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+		try {
+			Key key = new Key();
+			Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+			while(reader.next(key, value)){
+				if(key.getType() == VectorType.CENTROID)
+					continue;
+				if(value instanceof Values)
+					block.addAll(((Values) value).getBlock());
+				else
+					block.add((Value) value);
+			}
+		} finally {
+			reader.close();
+		}
+		return block;
+	}
+
+	private void writeCentroids(List<Value> centroids, Path dir) throws IOException {
+		fs.delete(dir, true);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, new Path(dir, "part-r-00000"),
+				Key.class, Value.class, CompressionType.NONE);
+		try {
+			Key key = new Key(1, VectorType.CENTROID);
+			for(Value centroid : centroids)
+				writer.append(key, centroid);
+		} finally {
+			writer.close();
+		}
+	}
+}
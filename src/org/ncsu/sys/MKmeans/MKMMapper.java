@@ -2,46 +2,108 @@ package org.ncsu.sys.MKmeans;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
 import org.ncsu.sys.MKmeans.MKMTypes.Values;
 import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
 
-public class MKMMapper extends Mapper<Key, Values, IntWritable, PartialCentroid> {
+/**
+ * Input values are {@link Values} records, a whole partition (the original
+ * layout) or a small batch of it (KM.vectorPerRecord), or a single
+ * {@link SparseValue} or {@link DoubleValue} per record.
+ *
+ * By default (KM.streaming=true) the mapper streams: every incoming block is
+ * assigned and folded into one PartialCentroid per centroid right away, and
+ * the sums are emitted in cleanup, so memory stays O(k*d) whatever the
+ * partition size. Single-vector records are first gathered into blocks of
+ * KM.classifyBatchSize vectors. KM.streaming=false buffers the whole split
+ * instead and classifies it in one pass in cleanup; the output is the same.
+ * A partition may arrive as several Values records or chunks either way.
+ * Sparse and double vectors are always folded in as they arrive, as they
+ * have no int block to be buffered in.
+ *
+ * The centroids are always loaded in setup(); CENTROID records in the input
+ * (the astro layout writes one per partition) are skipped.
+ *
+ * KM.classifyThreads (default 1, 0 for one per core) splits every block
+ * across that many threads inside the task.
+ *
+ * With KM.localCache=true a streaming mapper also keeps a decoded copy of its
+ * split in a {@link PartitionCache} on the local disk; when a later iteration
+ * maps the same split on the same node, the vectors are read from that copy
+ * and the record reader is never touched.
+ *
+ * Only centroids that got vectors are emitted; the reducer keeps the others
+ * where they were. KM.fillMissing=true restores the original behaviour of
+ * emitting every missing centroid as a copy of itself with count 1, which
+ * the reducer averages in as a real point, so the result then depends on
+ * the number of map tasks.
+ *
+ * Mini-batch jobs (see {@link MKMMiniBatch}) set KM.sampleFraction below 1
+ * to classify only a seeded random sample of the vectors. The sample is drawn as the vectors are folded in, one draw per
+ * vector in input order, so KM.streaming=false samples the buffered split in
+ * cleanup and keeps the same vectors as streaming.
+ */
+public class MKMMapper extends Mapper<Key, Writable, IntWritable, PartialCentroid> {
 	
 	private static final boolean DEBUG = true;
 	private int dimension;
 	private int k;
 	private int R1;
-	private boolean isCbuilt, isVbuilt;
-	private List<Value> centroids, vectors;
+	private boolean isVbuilt;
+	private List<Value> centroids;
+	private Classifier classifier;
+	private AssignmentType assignmentType;
+	private int classifyThreads;
+	private VectorBlock vectors;
+	private VectorBlock recordBatch;
+	private int batchSize;
+	private boolean streaming;
+	private PartialCentroid[] partials;
+	private long vectorCount;
+	private long classifyTime;
+	private PartitionCache cache;
+	private FileSplit cacheSplit;
+	private PartitionCache.Writer cacheWriter;
+	private boolean splitDone;
+	private boolean fillMissing;
+	private double sampleFraction;
+	private Random sampler;
+	private VectorBlock sample;
 	
-	public void setup (Context context) {
+	public void setup (Context context) throws IOException {
 		init(context);
 		Configuration conf = context.getConfiguration();
 		//read centroids
 		//Change this section for Phadoop version
 		FileSystem fs;
-		try {
+		long loadStart = System.nanoTime();
+		//prefer the node-local copy shipped through the distributed cache;
+		//a missing or unreadable centroid file fails the task
+		centroids = CentroidCache.load(context.getCacheFiles());
+		if(centroids == null){
 			fs = FileSystem.get(conf);
 			Path path = new Path(conf.get("KM.inputCenterPath"));
 			Path filePath = fs.makeQualified(path);
-			centroids = MKMUtils.getCentroidsFromFile(filePath, false);
-			if(centroids == null){
-				throw new IOException("No centroids fetched from the file");
-			}
-			isCbuilt = true;
-			if(DEBUG) System.out.println("************Centroids Read form file*************");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			centroids = MKMUtils.readCentroids(filePath, false);
+		}
+		if(centroids.isEmpty()){
+			throw new IOException("No centroids fetched from the file");
 		}
+		classifier = new Classifier(centroids, dimension, assignmentType, classifyThreads);
+		context.getCounter(Counter.CENTROID_LOAD_NANOS).increment(System.nanoTime() - loadStart);
+		if(DEBUG) System.out.println("************Centroids Read form file*************");
 	}
 	
 	private void init(Context context) {
@@ -49,108 +111,270 @@ public class MKMMapper extends Mapper<Key, Values, IntWritable, PartialCentroid>
 		dimension = conf.getInt("KM.dimension", 2);
 		k = conf.getInt("KM.k", 6);
 		R1 = conf.getInt("KM.R1", 6);
+		assignmentType = AssignmentType.getType(conf.get("KM.assignment", "auto"));
+		classifyThreads = conf.getInt("KM.classifyThreads", 1);
+		batchSize = conf.getInt("KM.classifyBatchSize", 65536);
+		streaming = conf.getBoolean("KM.streaming", true);
 		centroids = new ArrayList<Value>();
-		vectors = new ArrayList<Value>();
-		isCbuilt = isVbuilt = false;
+		vectors = new VectorBlock();
+		recordBatch = null;
+		partials = null;
+		vectorCount = 0;
+		classifyTime = 0;
+		isVbuilt = false;
+		cache = null;
+		cacheSplit = null;
+		cacheWriter = null;
+		splitDone = false;
+		fillMissing = conf.getBoolean("KM.fillMissing", false);
+		sampleFraction = conf.getFloat("KM.sampleFraction", 1.0f);
+		//a fixed seed per task keeps a re-executed attempt on the same sample
+		sampler = sampleFraction < 1.0 ? new Random(conf.getLong("KM.sampleSeed", 0)
+				* 31 + context.getTaskAttemptID().getTaskID().getId()) : null;
+		sample = null;
+	}
+
+	@Override
+	public void run(Context context) throws IOException, InterruptedException {
+		setup(context);
+		try {
+			if(!replayFromCache(context)){
+				while(context.nextKeyValue()){
+					map(context.getCurrentKey(), context.getCurrentValue(), context);
+				}
+			}
+			splitDone = true;
+		} finally {
+			cleanup(context);
+		}
+	}
+
+	/**
+	 * Feeds the split from the local cache if a valid copy exists; on a miss
+	 * arranges for the blocks read by this task to be cached.
+	 * 
+	 * @return true if the split was replayed from the cache
+	 */
+	private boolean replayFromCache(Context context) throws IOException {
+		Configuration conf = context.getConfiguration();
+		if(!conf.getBoolean("KM.localCache", false) || !streaming
+				|| !(context.getInputSplit() instanceof FileSplit))
+			return false;
+		cache = new PartitionCache(conf);
+		FileSplit split = (FileSplit) context.getInputSplit();
+		PartitionCache.Reader reader = cache.open(split, conf);
+		if(reader == null){
+			cacheSplit = split;
+			return false;
+		}
+		if(DEBUG) System.out.println("Replaying " + reader.getCount() + " cached vectors of " + split);
+		try {
+			VectorBlock block = new VectorBlock(reader.getDimension(), batchSize);
+			while(reader.next(block, batchSize) > 0){
+				accumulate(block);
+				block.clear();
+			}
+		} finally {
+			reader.close();
+		}
+		context.getCounter(Counter.CACHED_VECTORS).increment(reader.getCount());
+		return true;
 	}
 
-	public void map(Key key, Values values, Context context)
+	private void appendToCache(VectorBlock block, Context context) {
+		try {
+			if(cacheWriter == null)
+				cacheWriter = cache.create(cacheSplit, context.getConfiguration(),
+						context.getTaskAttemptID().toString(), block.getDimension());
+			cacheWriter.append(block);
+		} catch (IOException e) {
+			//the cache is an optimization only, never fail the task for it
+			e.printStackTrace();
+			if(cacheWriter != null)
+				cacheWriter.abort();
+			cacheWriter = null;
+			cacheSplit = null;
+		}
+	}
+
+	public void map(Key key, Writable value, Context context)
 			throws IOException, InterruptedException {
-		PartialCentroid[] partialCentroids = null;
-		if(key.getType() == org.ncsu.sys.MKmeans.MKMTypes.VectorType.CENTROID && !isCbuilt){
-			buildCentroids(values, centroids);
-			isCbuilt = true;
+		//in-band centroids are never data points
+		if(key.getType() == VectorType.CENTROID)
+			return;
+		if(value instanceof Value){
+			mapVector((Value) value, context);
+			return;
+		}
+		Values values = (Values) value;
+		if(streaming){
+			accumulate(values.getBlock(), context);
 		}
 		else{
-			//use build and set here
-			buildCentroids(values, vectors);
+			//KM.streaming=false: the split is classified once, in cleanup
+			vectors.addAll(values.getBlock());
 			isVbuilt = true;
-			//buildVectors(values, vectors);
-		}
-		if(isCbuilt && isVbuilt){
-			try{
-				if(DEBUG) System.out.println("Classifying " + vectors.size() + " vectors among " + centroids.size() + " clusters" );
-				System.out.println("$$VectorCount:"+"\t"+vectors.size());
-				long start =System.nanoTime();
-				partialCentroids = (PartialCentroid[]) classify(vectors, centroids);
-				for(PartialCentroid pcent : partialCentroids){
-					IntWritable newKey = new IntWritable(pcent.getCentroidIdx());
-					context.write(newKey, pcent);
-					if(DEBUG) printMapOutput(newKey, pcent);
-				}
-				long end =System.nanoTime();
-				System.out.println("$$ClassifyTime:"+"\t" + (end-start));
-			}
-			catch(Exception ex){
-				ex.printStackTrace();
-			}
 		}
-		
 	}
 	
-	private void printMapOutput(IntWritable newKey, PartialCentroid pcent) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("##### Map output: (" + newKey.get() + ") (" 
-					+ pcent.getDimension() + "," + pcent.getCentroidIdx() + "," + pcent.getCount() + "\n");
-		for(int coord : pcent.getCoordinates()){
-			sb.append(coord + ",");
+	private void mapVector(Value point, Context context) throws IOException {
+		if(point instanceof SparseValue || point instanceof DoubleValue){
+			mapSingle(point);
+			return;
+		}
+		if(!streaming){
+			vectors.add(point);
+			isVbuilt = true;
+			return;
+		}
+		if(recordBatch == null){
+			recordBatch = new VectorBlock(point.getDimension(), batchSize);
+		}
+		recordBatch.add(point);
+		if(recordBatch.getCount() >= batchSize){
+			accumulate(recordBatch, context);
+			recordBatch.clear();
 		}
-		sb.append(") ");
-		System.out.println(sb.toString());
+	}
+	
+	/**
+	 * Sparse and double vectors never go into an int block: each one goes
+	 * straight to the classifier and into the sums of its partial centroid.
+	 */
+	private void mapSingle(Value point) throws IOException {
+		if(cacheSplit != null){
+			//the local cache holds dense int blocks only
+			if(cacheWriter != null)
+				cacheWriter.abort();
+			cacheWriter = null;
+			cacheSplit = null;
+		}
+		if(sampler != null && sampler.nextDouble() >= sampleFraction)
+			return;
+		if(partials == null)
+			partials = classifier.newPartials();
+		long start = System.nanoTime();
+		if(point instanceof SparseValue)
+			classifier.classify((SparseValue) point, partials);
+		else
+			classifier.classify((DoubleValue) point, partials);
+		classifyTime += System.nanoTime() - start;
+		vectorCount++;
+	}
+	
+	/**
+	 * Folds a block into the running partial centroids of this task.
+	 */
+	private void accumulate(VectorBlock block) throws IOException {
+		accumulate(block, null);
 	}
 
-	private void buildCentroids(Values values, List<Value> centroidsLoc) {
-		for(Value val : values.getValues()){
-			if(DEBUG) System.out.println("Adding value :" + val);
-			Value valCopy = VectorFactory.getInstance(VectorType.REGULAR);
-			valCopy.copy(val);
-			centroidsLoc.add(valCopy);
-		}
-		
+	private void accumulate(VectorBlock block, Context context) throws IOException {
+		if(block.getCount() == 0)
+			return;
+		if(cacheSplit != null && context != null)
+			appendToCache(block, context);
+		if(sampler != null){
+			block = sample(block);
+			if(block.getCount() == 0)
+				return;
+		}
+		if(partials == null)
+			partials = classifier.newPartials();
+		long start = System.nanoTime();
+		classifier.classify(block, partials);
+		classifyTime += System.nanoTime() - start;
+		vectorCount += block.getCount();
 	}
 	
-	private PartialCentroid[] classify(List<Value> vectors2, List<Value> centroids2) throws Exception {
-		PartialCentroid[] partialCentroids = new PartialCentroid[centroids2.size()];
-		
-		Hashtable<Integer, Value> pCentMapping = new Hashtable<Integer, Value>(); 
-		for(Value pcent : centroids2){
-			pCentMapping.put(pcent.getCentroidIdx(), pcent);
-		}
-			
-		for(Value point : vectors2){
-			int idx = getNearestCentroidIndex(point, centroids2);
-			if(partialCentroids[idx] == null){
-				partialCentroids[idx] = (PartialCentroid)VectorFactory.getInstance(VectorType.PARTIALCENTROID, point.getDimension());
-				pCentMapping.remove(idx);
+	/**
+	 * Keeps every row of block with probability KM.sampleFraction.
+	 */
+	private VectorBlock sample(VectorBlock block) throws IOException {
+		int dim = block.getDimension();
+		if(sample == null)
+			sample = new VectorBlock(dim, Math.max(16, (int)(block.getCount() * sampleFraction * 1.1)));
+		sample.clear();
+		int[] data = block.getData();
+		int[] row = new int[dim];
+		for(int i = 0; i < block.getCount(); i++){
+			if(sampler.nextDouble() < sampleFraction){
+				System.arraycopy(data, block.getOffset(i), row, 0, dim);
+				sample.add(row, block.getCentroidIdx(i));
 			}
-			partialCentroids[idx].addVector(point);
-			if(partialCentroids[idx].getCentroidIdx() == MKMTypes.UNDEF_VAL){
-				partialCentroids[idx].setCentroidIdx(idx);
+		}
+		return sample;
+	}
+	
+	@Override
+	protected void cleanup(Context context) throws IOException,
+			InterruptedException {
+		super.cleanup(context);
+		try {
+			if(recordBatch != null)
+				accumulate(recordBatch, context);
+			if(!streaming && isVbuilt){
+				if(DEBUG) System.out.println("Classifying " + vectors.getCount() + " vectors among " + centroids.size() + " clusters" );
+				accumulate(vectors, context);
 			}
-			else {
-				if(partialCentroids[idx].getCentroidIdx() != idx)
-					if(DEBUG) throw new Exception("Fatal: Inconsistent cluster, multiple centroids problem!");
+			if(cacheWriter != null){
+				if(splitDone){
+					try {
+						cacheWriter.commit();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				else{
+					cacheWriter.abort();
+				}
+				cacheWriter = null;
 			}
-		}
-		if(pCentMapping.keySet()!= null && !pCentMapping.keySet().isEmpty()){
-			for(Integer key : pCentMapping.keySet()){
-				partialCentroids[key] = (PartialCentroid)VectorFactory.getInstance(VectorType.PARTIALCENTROID);
-				partialCentroids[key].copy(pCentMapping.get(key));
+			if(vectorCount > 0){
+				System.out.println("$$VectorCount:"+"\t"+vectorCount);
+				System.out.println("$$ClassifyTime:"+"\t" + classifyTime);
+				if(fillMissing)
+					classifier.fillMissingCentroids(partials);
+				long emitted = 0;
+				for(PartialCentroid pcent : partials){
+					if(pcent == null)
+						continue;
+					IntWritable newKey = new IntWritable(pcent.getCentroidIdx());
+					context.write(newKey, pcent);
+					emitted++;
+					if(DEBUG) printMapOutput(newKey, pcent);
+				}
+				context.getCounter(Counter.VECTORS_PROCESSED).increment(vectorCount);
+				context.getCounter(Counter.CLASSIFY_NANOS).increment(classifyTime);
+				context.getCounter(Counter.PARTIAL_CENTROIDS_EMITTED).increment(emitted);
 			}
+			if(context.getConfiguration().getBoolean("KM.balance", false))
+				writeSplitStats(context);
+			context.getCounter(Counter.DISTANCE_COMPUTATIONS).increment(classifier.getDistanceCount());
+			context.getCounter(Counter.DISTANCE_COMPUTATIONS_SAVED).increment(classifier.getSavedCount());
+		} finally {
+			classifier.close();
 		}
-		return partialCentroids;
 	}
 	
-	private int getNearestCentroidIndex(Value point, List<Value> centroids2) {
-		int nearestCidx = -1;
-		int shortestDistance = Integer.MAX_VALUE;
-		for(Value centroid : centroids2){
-			int distance = MKMUtils.getDistance(point, centroid);
-			if(distance < shortestDistance){
-				nearestCidx  = centroid.getCentroidIdx();
-				shortestDistance = distance;
-			}
+	/**
+	 * Commits what this split cost as a side file for {@link SplitPlanner}.
+	 */
+	private void writeSplitStats(Context context) throws IOException, InterruptedException {
+		Path stats = new Path(FileOutputFormat.getWorkOutputPath(context), String.format("%s%05d",
+				SplitPlanner.STATS_FILE_PREFIX, context.getTaskAttemptID().getTaskID().getId()));
+		SplitPlanner.writeStats(stats.getFileSystem(context.getConfiguration()), stats,
+				context.getInputSplit(), vectorCount, classifyTime);
+	}
+	
+	private void printMapOutput(IntWritable newKey, PartialCentroid pcent) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("##### Map output: (" + newKey.get() + ") (" 
+					+ pcent.getDimension() + "," + pcent.getCentroidIdx() + "," + pcent.getCount() + "\n");
+		for(long sum : pcent.getSums()){
+			sb.append(sum + ",");
 		}
-		return nearestCidx;
+		sb.append(") ");
+		System.out.println(sb.toString());
 	}
 }
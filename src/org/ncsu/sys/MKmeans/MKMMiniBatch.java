@@ -0,0 +1,214 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.mapreduce.Job;
+import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
+
+/**
+ * Mini-batch k-means (KM.mode=minibatch).
+ *
+ * Every iteration runs one job over a random KM.miniBatch.splitFraction of
+ * the input partitions, and the mappers classify a random
+ * KM.miniBatch.recordFraction of their vectors (KM.sampleFraction). The job
+ * ends in {@link MKMCombiner}, so its output is the raw per-centroid sums
+ * of the batch. The driver then moves every centroid towards its batch mean
+ * with a per-centroid learning rate n_b / v_c. Here n_b is the number of
+ * vectors the centroid got in this batch, and v_c is the number it has
+ * been given so far, batch included. A centroid that nobody picked stays
+ * where it is.
+ *
+ * The centroids are kept as doubles between iterations so the rounding of
+ * the int coordinates written out does not accumulate. Stopping criterion:
+ * the largest centroid move of a batch is smoothed with an exponentially
+ * weighted average (weight min(1, 2 * batch fraction)). The run stops when
+ * that average falls to KM.miniBatch.tolerance (default
+ * sqrt(convergenceDelta)), or when it has not improved for
+ * KM.miniBatch.patience iterations (default 10).
+ */
+public class MKMMiniBatch {
+
+	private static final boolean DEBUG = true;
+
+	private final Configuration conf;
+	private final FileSystem fs;
+	private final int dimension;
+	private final double splitFraction;
+	private final double recordFraction;
+	private final long seed;
+	private final int patience;
+
+	public MKMMiniBatch(Configuration conf, FileSystem fs) {
+		this.conf = conf;
+		this.fs = fs;
+		this.dimension = conf.getInt("KM.dimension", 2);
+		this.splitFraction = conf.getFloat("KM.miniBatch.splitFraction", 1.0f);
+		this.recordFraction = conf.getFloat("KM.miniBatch.recordFraction", 0.1f);
+		this.seed = conf.getLong("KM.miniBatch.seed", 0);
+		this.patience = conf.getInt("KM.miniBatch.patience", 10);
+	}
+
+	/**
+	 * @return the final centroids
+	 */
+	public List<Value> kmeans(Path centersIn, Path outputDir, int maxIterations, int convergenceDelta)
+			throws Exception {
+		double tolerance = conf.getFloat("KM.miniBatch.tolerance", (float)Math.sqrt(convergenceDelta));
+		List<Path> inputs = MKMUtils.listInputs(fs, new Path(conf.get("KM.inputDataPath")));
+		int batchInputs = Math.max(1, (int)Math.ceil(inputs.size() * splitFraction));
+		double alpha = Math.min(1.0, 2.0 * recordFraction * batchInputs / inputs.size());
+
+		List<Value> initial = MKMUtils.getCentroidsFromFile(centersIn, false);
+		int k = 0;
+		for(Value centroid : initial)
+			k = Math.max(k, centroid.getCentroidIdx() + 1);
+		double[][] centers = new double[k][];
+		long[] seen = new long[k];
+		for(Value centroid : initial){
+			double[] center = new double[dimension];
+			for(int j = 0; j < dimension; j++)
+				center[j] = centroid.getCoordinates()[j];
+			centers[centroid.getCentroidIdx()] = center;
+		}
+
+		Random random = new Random(seed);
+		double ewaShift = -1;
+		double bestEwa = Double.MAX_VALUE;
+		int noImprovement = 0;
+		Path current = centersIn;
+		for(int iteration = 1; iteration <= maxIterations; iteration++){
+			long start = System.nanoTime();
+			List<Path> batch = new ArrayList<Path>(inputs);
+			Collections.shuffle(batch, random);
+			batch = batch.subList(0, batchInputs);
+
+			Path sumsOut = fs.makeQualified(new Path(outputDir, "batch-" + iteration));
+			fs.delete(sumsOut, true);
+			Configuration jobConf = new Configuration(conf);
+			jobConf.set("KM.inputCenterPath", current.toString());
+			jobConf.setFloat("KM.sampleFraction", (float)recordFraction);
+			jobConf.setLong("KM.sampleSeed", random.nextLong());
+			jobConf.setBoolean("KM.fillMissing", false);
+			Job job = MKMDriver.createJob(jobConf, fs, current, sumsOut, batch);
+			job.setJobName("kmeans-minibatch");
+			job.setReducerClass(MKMCombiner.class);
+			job.setOutputKeyClass(IntWritable.class);
+			job.setOutputValueClass(PartialCentroid.class);
+			if(!job.waitForCompletion(true))
+				throw new IOException("Mini-batch job failed in iteration " + iteration);
+
+			double shift = update(centers, seen, readSums(sumsOut));
+			fs.delete(sumsOut, true);
+			Path centersOut = fs.makeQualified(new Path(outputDir, "iteration-" + iteration));
+			writeCentroids(centers, centersOut);
+			current = centersOut;
+
+			ewaShift = ewaShift < 0 ? shift : alpha * shift + (1 - alpha) * ewaShift;
+			if(ewaShift < bestEwa){
+				bestEwa = ewaShift;
+				noImprovement = 0;
+			}
+			else{
+				noImprovement++;
+			}
+			if(DEBUG) System.out.println("## mini-batch iteration " + iteration + ": max shift " + shift
+					+ ", smoothed " + ewaShift + ", took " + (System.nanoTime() - start) / 1000000 + " ms");
+			if(ewaShift <= tolerance || noImprovement >= patience){
+				System.out.println("## mini-batch stopped after iteration " + iteration
+						+ (ewaShift <= tolerance ? " (shift below tolerance)" : " (no improvement)"));
+				break;
+			}
+		}
+		System.out.println("Final centroids at " + current.toString());
+		return toValues(centers);
+	}
+
+	/**
+	 * Applies one batch of sums to the centers.
+	 *
+	 * @return the largest distance a center moved
+	 */
+	private double update(double[][] centers, long[] seen, List<PartialCentroid> sums) throws IOException {
+		double maxShift = 0;
+		for(PartialCentroid pCent : sums){
+			int idx = pCent.getCentroidIdx();
+			if(idx < 0 || idx >= centers.length || centers[idx] == null)
+				throw new IOException("Batch sums for unknown centroid " + idx);
+			long n = pCent.getCount();
+			if(n == 0)
+				continue;
+			seen[idx] += n;
+			double rate = (double)n / seen[idx];
+			double[] center = centers[idx];
+			long[] batchSums = pCent.getSums();
+			double shift2 = 0;
+			for(int j = 0; j < dimension; j++){
+				double step = rate * ((double)batchSums[j] / n - center[j]);
+				center[j] += step;
+				shift2 += step * step;
+			}
+			maxShift = Math.max(maxShift, Math.sqrt(shift2));
+		}
+		return maxShift;
+	}
+
+	private List<PartialCentroid> readSums(Path dir) throws IOException {
+		List<PartialCentroid> sums = new ArrayList<PartialCentroid>();
+		for(FileStatus part : fs.listStatus(dir)){
+			String name = part.getPath().getName();
+			if(!name.startsWith("part"))
+				continue;
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()));
+			try {
+				IntWritable key = new IntWritable();
+				PartialCentroid value = new PartialCentroid();
+				while(reader.next(key, value)){
+					sums.add(value);
+					value = new PartialCentroid();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return sums;
+	}
+
+	private List<Value> toValues(double[][] centers) {
+		List<Value> centroids = new ArrayList<Value>();
+		for(int idx = 0; idx < centers.length; idx++){
+			if(centers[idx] == null)
+				continue;
+			Value centroid = VectorFactory.getInstance(VectorType.CENTROID, dimension);
+			int[] coords = centroid.getCoordinates();
+			for(int j = 0; j < dimension; j++)
+				coords[j] = (int)Math.round(centers[idx][j]);
+			centroid.setCentroidIdx(idx);
+			centroids.add(centroid);
+		}
+		return centroids;
+	}
+
+	private void writeCentroids(double[][] centers, Path dir) throws IOException {
+		fs.delete(dir, true);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, new Path(dir, "part-r-00000"),
+				Key.class, Value.class, CompressionType.NONE);
+		try {
+			Key key = new Key(1, VectorType.CENTROID);
+			for(Value centroid : toValues(centers))
+				writer.append(key, centroid);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.ncsu.sys.MKmeans;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Sends centroid indices [0, k) to reducers in contiguous ranges, so each
+ * reducer produces a consecutive slice of the centroid set in its part file.
+ */
+public class MKMPartitioner extends Partitioner<IntWritable, PartialCentroid> implements Configurable {
+
+	private Configuration conf;
+	private int k;
+
+	@Override
+	public int getPartition(IntWritable key, PartialCentroid value, int numPartitions) {
+		int idx = key.get();
+		if(idx < 0 || idx >= k)
+			return (idx & Integer.MAX_VALUE) % numPartitions;
+		return (int)((long) idx * numPartitions / k);
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		this.k = conf.getInt("KM.k", 6);
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+}
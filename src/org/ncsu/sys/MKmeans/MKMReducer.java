@@ -2,42 +2,83 @@ package org.ncsu.sys.MKmeans;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.ncsu.sys.MKmeans.MKMTypes.CoordinateType;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
 import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
 
+/**
+ * Averages the partial centroids of every centroid index and writes the new
+ * centroids as the job output, one part file per reducer. The driver and
+ * the next iteration's mappers read all part files back as one centroid set.
+ *
+ * Each new centroid is also compared with its previous position: centroids
+ * that moved further than KM.convergenceDelta (squared distance) are
+ * counted in UNCONVERGED_CENTROIDS, the squared moves are summed in
+ * TOTAL_SHIFT, and every reducer writes its largest move to a
+ * _shift-r-NNNNN summary next to its part file, so the driver can decide
+ * convergence without reading the centroids back.
+ *
+ * A centroid that got no vector in any map task keeps its previous
+ * position: the reducer its index is partitioned to writes the old centroid
+ * again, with a move of 0. The mappers do not pad their output with copies
+ * of such centroids (unless KM.fillMissing=true), so the result does not
+ * depend on how the input is split.
+ *
+ * With KM.coordinates=double the new centroids are written as exact
+ * {@link DoubleValue} means and the moves are measured in double.
+ */
 public class MKMReducer extends Reducer<IntWritable, PartialCentroid, Key, Value> {
 
+	static final String SHIFT_FILE_PREFIX = "_shift-r-";
+
 	private int mapTaskCount;
-	private List<SequenceFile.Writer> writers;
+	private Key outKey;
+	private Map<Integer, Value> oldCentroids;
+	private Set<Integer> reduced;
+	private long convergenceDelta;
+	private CoordinateType coordinateType;
+	private long maxShift;
+	private long totalShift;
+	private long unconverged;
+	private long mergeTime;
 	
 	
-	public void setup (Context context) {
-		Configuration conf = context.getConfiguration();
-		FileSystem fs;
-		try {
-			fs = FileSystem.get(conf);
-			init(context);
-			//initialize the list of sequence file writers
-			Path path = new Path(conf.get("KM.inputCenterPath"));
-			writers = new ArrayList<SequenceFile.Writer>();
-			writers.add(SequenceFile.createWriter(fs, conf, path,
-				      Key.class, Value.class,
-				      SequenceFile.CompressionType.NONE));
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	public void setup (Context context) throws IOException {
+		init(context);
 	}
 	
-	private void init(Context context) {
+	private void init(Context context) throws IOException {
 		Configuration conf = context.getConfiguration();
 		mapTaskCount = conf.getInt("KM.mapTaskCount", 4);
+		outKey = new Key(1, VectorType.CENTROID);
+		convergenceDelta = conf.getInt("KM.convergenceDelta", 0);
+		coordinateType = CoordinateType.getType(conf.get("KM.coordinates", "int"));
+		maxShift = totalShift = unconverged = mergeTime = 0;
+		List<Value> centroids = CentroidCache.load(context.getCacheFiles());
+		if(centroids == null && conf.get("KM.inputCenterPath") != null)
+			centroids = MKMUtils.readCentroids(new Path(conf.get("KM.inputCenterPath")), false);
+		oldCentroids = new HashMap<Integer, Value>();
+		reduced = new HashSet<Integer>();
+		if(centroids != null){
+			for(Value centroid : centroids)
+				oldCentroids.put(centroid.getCentroidIdx(), centroid);
+		}
 //		dimension = conf.getInt("KM.dimension", 2);
 //		k = conf.getInt("KM.k", 6);
 //		R1 = conf.getInt("KM.R1", 6);
@@ -45,24 +86,13 @@ public class MKMReducer extends Reducer<IntWritable, PartialCentroid, Key, Value
 //		vectors = new ArrayList<Value>();
 //		isCbuilt = isVbuilt = false;
 	}
-	
-	@Override
-	protected void cleanup(Context context) throws IOException,
-			InterruptedException {
-		super.cleanup(context);
-		//close writers
-		if(writers != null){
-			for(SequenceFile.Writer writer : writers){
-				writer.close();
-			}
-		}
-	}
 
 	public void reduce(IntWritable _key, Iterable<PartialCentroid> values, Context context)
 			throws IOException, InterruptedException {
 		// process values
 		Value newCentroid;
 		PartialCentroid newpCentroid = null;
+		long start = System.nanoTime();
 		for (PartialCentroid val : values) {
 			if(newpCentroid == null){
 				newpCentroid = new PartialCentroid(val.getDimension());
@@ -72,36 +102,122 @@ public class MKMReducer extends Reducer<IntWritable, PartialCentroid, Key, Value
 			{
 				newpCentroid.addVector(val);
 			}
-//				context.write(new Key(1, VectorType.CENTROID), newCentroid);
 		}
+		mergeTime += System.nanoTime() - start;
+		reduced.add(_key.get());
 		try {
 			newCentroid = computeNewCentroid(newpCentroid);
-			//TODO: iterate through all the file and write each of the newCentroids computed
-			for(SequenceFile.Writer writer : writers){
-				writer.append(new Key(1, VectorType.CENTROID), newCentroid);
+			if(newCentroid == null)
+				newCentroid = carryForward(_key.get());
+			if(newCentroid != null){
+				context.write(outKey, newCentroid);
+				recordShift(newCentroid);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * @return the previous position of centroid idx, in the output's
+	 * coordinate type, or null if it is not known
+	 */
+	private Value carryForward(int idx) {
+		Value oldCentroid = oldCentroids.get(idx);
+		if(oldCentroid == null)
+			return null;
+		if(coordinateType == CoordinateType.DOUBLE && !(oldCentroid instanceof DoubleValue)){
+			//the first iteration starts from int centers
+			Value converted = VectorFactory.getInstance(VectorType.DOUBLE, oldCentroid.getDimension());
+			converted.copy(oldCentroid);
+			return converted;
+		}
+		return oldCentroid;
+	}
+	
+	/**
+	 * Writes the old centroids partitioned to this reducer that no map task
+	 * emitted anything for.
+	 */
+	private void writeUnreduced(Context context) throws IOException, InterruptedException {
+		Partitioner<IntWritable, PartialCentroid> partitioner;
+		try {
+			@SuppressWarnings("unchecked")
+			Class<? extends Partitioner<IntWritable, PartialCentroid>> partitionerClass =
+					(Class<? extends Partitioner<IntWritable, PartialCentroid>>) context.getPartitionerClass();
+			partitioner = ReflectionUtils.newInstance(partitionerClass, context.getConfiguration());
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		int partitions = context.getNumReduceTasks();
+		int partition = context.getTaskAttemptID().getTaskID().getId();
+		List<Integer> missing = new ArrayList<Integer>();
+		IntWritable key = new IntWritable();
+		for(Integer idx : oldCentroids.keySet()){
+			key.set(idx);
+			if(!reduced.contains(idx) && (partitions <= 1 || partitioner.getPartition(key, null, partitions) == partition))
+				missing.add(idx);
+		}
+		Collections.sort(missing);
+		for(int idx : missing){
+			Value centroid = carryForward(idx);
+			context.write(outKey, centroid);
+			recordShift(centroid);
+		}
+	}
+	
+	private void recordShift(Value newCentroid) {
+		Value oldCentroid = oldCentroids.get(newCentroid.getCentroidIdx());
+		if(oldCentroid == null){
+			//nothing to compare with, never call that converged
+			unconverged++;
+			return;
+		}
+		boolean moved;
+		long shift;
+		if(coordinateType == CoordinateType.DOUBLE){
+			double exact = MKMUtils.getDistance(MKMUtils.getDoubleCoordinates(oldCentroid), 0,
+					MKMUtils.getDoubleCoordinates(newCentroid), 0, newCentroid.getDimension());
+			moved = exact > convergenceDelta;
+			//the counters are longs; never report a real move as 0
+			shift = (long)Math.ceil(exact);
+		}
+		else{
+			shift = MKMUtils.getDistance(oldCentroid.getCoordinates(), newCentroid.getCoordinates());
+			moved = shift > convergenceDelta;
+		}
+		maxShift = Math.max(maxShift, shift);
+		totalShift += shift;
+		if(moved)
+			unconverged++;
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException, InterruptedException {
+		super.cleanup(context);
+		writeUnreduced(context);
+		context.getCounter(Counter.UNCONVERGED_CENTROIDS).increment(unconverged);
+		context.getCounter(Counter.TOTAL_SHIFT).increment(totalShift);
+		context.getCounter(Counter.REDUCE_MERGE_NANOS).increment(mergeTime);
+		Path workDir = FileOutputFormat.getWorkOutputPath(context);
+		Path summary = new Path(workDir, String.format("%s%05d", SHIFT_FILE_PREFIX,
+				context.getTaskAttemptID().getTaskID().getId()));
+		FileSystem fs = summary.getFileSystem(context.getConfiguration());
+		FSDataOutputStream out = fs.create(summary, true);
+		try {
+			out.writeLong(maxShift);
+			out.writeLong(totalShift);
+			out.writeLong(unconverged);
+		} finally {
+			out.close();
+		}
+	}
+	
 	private Value computeNewCentroid(PartialCentroid pCent) throws Exception {
 		if(pCent == null){
 			throw new Exception("partialcentroid can not be null");
 		}
-		if(pCent.getCount() == 0)
-			return null;
-		else {
-			Value newCentroid = VectorFactory.getInstance(VectorType.CENTROID, pCent.getDimension());
-			int[] coords = pCent.getCoordinates();
-			int[] newCoords = newCentroid.getCoordinates();
-			for(int i = 0; i < coords.length; i++){
-				newCoords[i] = coords[i]/pCent.getCount();
-			}
-			newCentroid.setCentroidIdx(pCent.getCentroidIdx());
-			return newCentroid;
-		}
-			
+		return MKMUtils.computeCentroid(pCent, coordinateType);
 	}
 
 }
@@ -0,0 +1,85 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
+
+/**
+ * One k-means|| pass (see {@link MKMSeeder}), run map-only.
+ *
+ * Adds the squared distance of every vector to its nearest current
+ * candidate to the SEED_COST counter, and emits the vector as a new
+ * candidate with probability min(1, l * d^2 / cost), where l is
+ * KM.seed.oversampling and cost is KM.seed.cost, the total of the previous
+ * pass. A pass without KM.seed.cost only measures the cost.
+ */
+public class MKMSeedMapper extends Mapper<Key, Writable, Key, Value> {
+
+	private int dimension;
+	private Assigner assigner;
+	private VectorBlock candidates;
+	private double oversampling;
+	private double previousCost;
+	private Random random;
+	private double cost;
+	private Key outKey;
+
+	public void setup(Context context) throws IOException {
+		Configuration conf = context.getConfiguration();
+		dimension = conf.getInt("KM.dimension", 2);
+		oversampling = conf.getFloat("KM.seed.oversampling", 2.0f * conf.getInt("KM.k", 6));
+		previousCost = Double.parseDouble(conf.get("KM.seed.cost", "0"));
+		random = new Random(conf.getLong("KM.seed.seed", 0) * 31 + context.getTaskAttemptID().getTaskID().getId());
+		List<Value> centroids = CentroidCache.load(context.getCacheFiles());
+		if(centroids == null)
+			centroids = MKMUtils.readCentroids(new Path(conf.get("KM.inputCenterPath")), false);
+		if(centroids == null || centroids.isEmpty())
+			throw new IOException("No candidates to measure the cost against");
+		candidates = new VectorBlock(dimension, centroids.size());
+		for(Value centroid : centroids)
+			candidates.add(centroid);
+		assigner = AssignerFactory.getInstance(AssignmentType.getType(conf.get("KM.assignment", "auto")), candidates);
+		cost = 0;
+		outKey = new Key(0, VectorType.REGULAR);
+	}
+
+	public void map(Key key, Writable value, Context context) throws IOException, InterruptedException {
+		if(key.getType() == VectorType.CENTROID)
+			return;
+		if(value instanceof Value){
+			Value point = (Value) value;
+			visit(point.getCoordinates(), 0, context);
+			return;
+		}
+		VectorBlock block = ((Values) value).getBlock();
+		int[] data = block.getData();
+		for(int i = 0; i < block.getCount(); i++)
+			visit(data, block.getOffset(i), context);
+	}
+
+	private void visit(int[] data, int offset, Context context) throws IOException, InterruptedException {
+		int row = assigner.getNearestRow(data, offset);
+		long d2 = MKMUtils.getDistance(data, offset, candidates.getData(), candidates.getOffset(row), dimension);
+		cost += d2;
+		if(previousCost > 0 && random.nextDouble() * previousCost < oversampling * d2){
+			Value sample = new Value(dimension);
+			System.arraycopy(data, offset, sample.getCoordinates(), 0, dimension);
+			context.write(outKey, sample);
+		}
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException, InterruptedException {
+		super.cleanup(context);
+		context.getCounter(Counter.SEED_COST).increment(Math.round(cost));
+	}
+}
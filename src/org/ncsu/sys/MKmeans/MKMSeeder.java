@@ -0,0 +1,318 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
+import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
+
+/**
+ * k-means|| seeding (KM.init=kmeans||) over the partitions under
+ * KM.inputDataPath.
+ *
+ * The candidate set starts from one vector picked uniformly at random.
+ * Then KM.seed.rounds (default 5) map-only {@link MKMSeedMapper} passes
+ * each add about l = KM.seed.oversampling (default 2k) vectors, sampled in
+ * proportion to their squared distance to the candidates. Each pass
+ * samples against the cost measured by the pass before it, so the
+ * sampling and the cost of the grown set take one pass together. One more
+ * pass runs the regular MKMMapper and MKMCombiner over the candidates to
+ * count the vectors nearest to each of them. The driver then reduces the
+ * weighted candidates to k centers with k-means++ and a few weighted
+ * Lloyd iterations, and writes them as the initial centroid file.
+ */
+public class MKMSeeder {
+
+	private static final boolean DEBUG = true;
+	private static final int LLOYD_ITERATIONS = 10;
+
+	private final Configuration conf;
+	private final FileSystem fs;
+	private final int dimension;
+	private final int rounds;
+	private final Random random;
+
+	public MKMSeeder(Configuration conf, FileSystem fs) {
+		this.conf = conf;
+		this.fs = fs;
+		this.dimension = conf.getInt("KM.dimension", 2);
+		this.rounds = conf.getInt("KM.seed.rounds", 5);
+		this.random = new Random(conf.getLong("KM.seed.seed", 0));
+	}
+
+	/**
+	 * Writes k seeds to centersOut, using workDir for the passes' files.
+	 */
+	public List<Value> seed(Path centersOut, Path workDir, int k) throws Exception {
+		long start = System.nanoTime();
+		fs.delete(workDir, true);
+		List<Path> inputs = MKMUtils.listInputs(fs, new Path(conf.get("KM.inputDataPath")));
+		List<Value> candidates = new ArrayList<Value>();
+		candidates.add(pickUniform(inputs));
+
+		double cost = 0;
+		//pass 0 only measures the cost; too few candidates get up to rounds more passes
+		for(int pass = 0; pass <= 2 * rounds; pass++){
+			Path candidatePath = new Path(workDir, "candidates-" + pass);
+			writeCentroids(candidates, candidatePath);
+			Path sampleOut = new Path(workDir, "samples-" + pass);
+			Job job = Job.getInstance(conf, "kmeans-seed");
+			job.setJarByClass(MKMSeeder.class);
+			Configuration jobConf = job.getConfiguration();
+			jobConf.set("KM.inputCenterPath", candidatePath.toString());
+			jobConf.set("KM.seed.cost", Double.toString(cost));
+			jobConf.setLong("KM.seed.seed", random.nextLong());
+			MKMDriver.setInputFormat(job, jobConf);
+			job.setOutputFormatClass(SequenceFileOutputFormat.class);
+			job.setMapperClass(MKMSeedMapper.class);
+			job.setNumReduceTasks(0);
+			job.setOutputKeyClass(Key.class);
+			job.setOutputValueClass(Value.class);
+			for(Path input : inputs)
+				FileInputFormat.addInputPath(job, input);
+			FileOutputFormat.setOutputPath(job, sampleOut);
+			if(conf.getBoolean("KM.distributedCache", true))
+				CentroidCache.publish(job, candidatePath, fs);
+			if(!job.waitForCompletion(true))
+				throw new IOException("Seeding pass " + pass + " failed");
+			cost = job.getCounters().findCounter(Counter.SEED_COST).getValue();
+			for(Value sample : readVectors(sampleOut)){
+				sample.setCentroidIdx(candidates.size());
+				candidates.add(sample);
+			}
+			if(DEBUG) System.out.println("## seeding pass " + pass + ": cost " + cost + ", " + candidates.size() + " candidates");
+			if(cost == 0 || (pass >= rounds && candidates.size() >= k))
+				break;
+		}
+		if(candidates.size() < k)
+			throw new IOException("Only " + candidates.size() + " candidates for " + k + " centers");
+
+		long[] weights = weigh(candidates, workDir);
+		List<Value> seeds = reduce(candidates, weights, k);
+		writeCentroids(seeds, centersOut);
+		fs.delete(workDir, true);
+		System.out.println("Seeded " + k + " centers from " + candidates.size() + " candidates in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		return seeds;
+	}
+
+	/**
+	 * Counts the vectors nearest to every candidate with one regular
+	 * assignment pass that ends in the combiner.
+	 */
+	private long[] weigh(List<Value> candidates, Path workDir) throws Exception {
+		Path candidatePath = new Path(workDir, "candidates");
+		writeCentroids(candidates, candidatePath);
+		Path sumsOut = new Path(workDir, "weights");
+		Configuration jobConf = new Configuration(conf);
+		jobConf.set("KM.inputCenterPath", candidatePath.toString());
+		jobConf.setBoolean("KM.fillMissing", false);
+		jobConf.setInt("KM.k", candidates.size());
+		Job job = MKMDriver.createJob(jobConf, fs, candidatePath, sumsOut,
+				MKMUtils.listInputs(fs, new Path(conf.get("KM.inputDataPath"))));
+		job.setJobName("kmeans-seed-weights");
+		job.setReducerClass(MKMCombiner.class);
+		job.setOutputKeyClass(IntWritable.class);
+		job.setOutputValueClass(PartialCentroid.class);
+		if(!job.waitForCompletion(true))
+			throw new IOException("Seeding weight pass failed");
+		long[] weights = new long[candidates.size()];
+		for(FileStatus part : fs.listStatus(sumsOut)){
+			if(!part.getPath().getName().startsWith("part"))
+				continue;
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()));
+			try {
+				IntWritable key = new IntWritable();
+				PartialCentroid value = new PartialCentroid();
+				while(reader.next(key, value))
+					weights[value.getCentroidIdx()] += value.getCount();
+			} finally {
+				reader.close();
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * Weighted k-means++ over the candidates, refined by weighted Lloyd
+	 * iterations.
+	 */
+	private List<Value> reduce(List<Value> candidates, long[] weights, int k) {
+		int m = candidates.size();
+		double[][] points = new double[m][dimension];
+		for(int i = 0; i < m; i++){
+			int[] coords = candidates.get(i).getCoordinates();
+			for(int j = 0; j < dimension; j++)
+				points[i][j] = coords[j];
+		}
+		double[][] centers = new double[k][];
+		double[] nearest = new double[m];
+		centers[0] = points[pick(weights, null, m)].clone();
+		for(int i = 0; i < m; i++)
+			nearest[i] = distance(points[i], centers[0]);
+		for(int c = 1; c < k; c++){
+			centers[c] = points[pick(weights, nearest, m)].clone();
+			for(int i = 0; i < m; i++)
+				nearest[i] = Math.min(nearest[i], distance(points[i], centers[c]));
+		}
+
+		int[] assignment = new int[m];
+		for(int iter = 0; iter < LLOYD_ITERATIONS; iter++){
+			boolean changed = iter == 0;
+			for(int i = 0; i < m; i++){
+				int best = 0;
+				double bestDist = Double.MAX_VALUE;
+				for(int c = 0; c < k; c++){
+					double dist = distance(points[i], centers[c]);
+					if(dist < bestDist){
+						bestDist = dist;
+						best = c;
+					}
+				}
+				if(assignment[i] != best){
+					assignment[i] = best;
+					changed = true;
+				}
+			}
+			if(!changed)
+				break;
+			double[][] sums = new double[k][dimension];
+			double[] total = new double[k];
+			for(int i = 0; i < m; i++){
+				for(int j = 0; j < dimension; j++)
+					sums[assignment[i]][j] += weights[i] * points[i][j];
+				total[assignment[i]] += weights[i];
+			}
+			for(int c = 0; c < k; c++){
+				//an emptied center keeps its position
+				if(total[c] == 0)
+					continue;
+				for(int j = 0; j < dimension; j++)
+					centers[c][j] = sums[c][j] / total[c];
+			}
+		}
+
+		List<Value> seeds = new ArrayList<Value>(k);
+		for(int c = 0; c < k; c++){
+			Value seed = VectorFactory.getInstance(VectorType.CENTROID, dimension);
+			for(int j = 0; j < dimension; j++)
+				seed.getCoordinates()[j] = (int)Math.round(centers[c][j]);
+			seed.setCentroidIdx(c);
+			seeds.add(seed);
+		}
+		return seeds;
+	}
+
+	/**
+	 * Picks an index with probability proportional to weight * nearest, or to
+	 * weight alone when nearest is null.
+	 */
+	private int pick(long[] weights, double[] nearest, int m) {
+		double total = 0;
+		for(int i = 0; i < m; i++)
+			total += weights[i] * (nearest == null ? 1 : nearest[i]);
+		if(total == 0)
+			return random.nextInt(m);
+		double target = random.nextDouble() * total;
+		for(int i = 0; i < m; i++){
+			target -= weights[i] * (nearest == null ? 1 : nearest[i]);
+			if(target < 0)
+				return i;
+		}
+		return m - 1;
+	}
+
+	private double distance(double[] a, double[] b) {
+		double sum = 0;
+		for(int j = 0; j < dimension; j++){
+			double diff = a[j] - b[j];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Reservoir-samples one vector of a randomly chosen partition.
+	 */
+	private Value pickUniform(List<Path> inputs) throws IOException {
+		Path file = inputs.get(random.nextInt(inputs.size()));
+		Value chosen = null;
+		long seen = 0;
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+		try {
+			Key key = new Key();
+			Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+			while(reader.next(key, value)){
+				if(key.getType() == VectorType.CENTROID)
+					continue;
+				VectorBlock block;
+				if(value instanceof Values){
+					block = ((Values) value).getBlock();
+				}
+				else{
+					block = new VectorBlock();
+					block.add((Value) value);
+				}
+				for(int i = 0; i < block.getCount(); i++){
+					if(random.nextDouble() * ++seen < 1)
+						chosen = block.getValue(i);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if(chosen == null)
+			throw new IOException("No vectors in " + file);
+		chosen.setCentroidIdx(0);
+		return chosen;
+	}
+
+	private List<Value> readVectors(Path dir) throws IOException {
+		List<Value> vectors = new ArrayList<Value>();
+		for(FileStatus part : fs.listStatus(dir)){
+			if(!part.getPath().getName().startsWith("part"))
+				continue;
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()));
+			try {
+				Key key = new Key();
+				Value value = new Value();
+				while(reader.next(key, value)){
+					vectors.add(value);
+					value = new Value();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return vectors;
+	}
+
+	private void writeCentroids(List<Value> centroids, Path file) throws IOException {
+		fs.delete(file, true);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file,
+				Key.class, Value.class, CompressionType.NONE);
+		try {
+			Key key = new Key(1, VectorType.CENTROID);
+			for(Value centroid : centroids)
+				writer.append(key, centroid);
+		} finally {
+			writer.close();
+		}
+	}
+}
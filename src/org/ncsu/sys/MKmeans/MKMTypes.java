@@ -15,7 +15,7 @@ public class MKMTypes {
 	public static int UNDEF_VAL = -1;
 	
 	public static enum VectorType{
-		REGULAR(0), CENTROID(1), PARTIALCENTROID(2);
+		REGULAR(0), CENTROID(1), PARTIALCENTROID(2), SPARSE(3), DOUBLE(4);
 		
 		private int typeVal;
 		private VectorType(int typeVal){
@@ -34,15 +34,139 @@ public class MKMTypes {
 				return CENTROID;
 			case 2:
 				return PARTIALCENTROID;
+			case 3:
+				return SPARSE;
+			case 4:
+				return DOUBLE;
 			default:
 				return REGULAR;
 			}
 		}
 	}
 	
+	/**
+	 * Nearest-centroid search used by the mapper, selected with KM.assignment.
+	 * AUTO picks the kd-tree or the linear scan from k and the dimension.
+	 */
+	public static enum AssignmentType{
+		LINEAR, HAMERLY, KDTREE, AUTO;
+		
+		public static AssignmentType getType(String name) {
+			if(name == null)
+				return LINEAR;
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("ERROR: undefined assignment type " + name + ", using LINEAR");
+				return LINEAR;
+			}
+		}
+	}
+	
+	/**
+	 * Arithmetic of a run, selected with KM.coordinates. INT keeps int
+	 * centroids, truncated means and exact long distances. DOUBLE writes the
+	 * centroids as {@link DoubleValue} means and computes every distance
+	 * against them in double.
+	 */
+	public static enum CoordinateType{
+		INT, DOUBLE;
+		
+		public static CoordinateType getType(String name) {
+			if(name == null)
+				return INT;
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("ERROR: undefined coordinate type " + name + ", using INT");
+				return INT;
+			}
+		}
+	}
+	
+	/**
+	 * Synthetic data of {@link MKMDataGenerator}, selected with
+	 * KM.gen.distribution. GAUSSIAN is a mixture of equally likely
+	 * components; SKEWED gives the components Zipf weights instead.
+	 */
+	public static enum Distribution{
+		UNIFORM, GAUSSIAN, SKEWED;
+		
+		public static Distribution getType(String name) {
+			if(name == null)
+				return UNIFORM;
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("ERROR: undefined distribution " + name + ", using UNIFORM");
+				return UNIFORM;
+			}
+		}
+	}
+	
+	/**
+	 * Wire format of a {@link Values} batch. LEGACY is the original layout
+	 * of one full Value per vector. The compact formats write
+	 * COMPACT_MARKER, a version byte holding the format's id, then the vector
+	 * count and the dimension once. After that come zig-zag varint
+	 * coordinates, either plain (VARINT) or as differences to the previous
+	 * vector (DELTA), and a varint centroid index per vector. The marker
+	 * is never a valid legacy count, so old files still read.
+	 */
+	public static enum ValuesFormat{
+		LEGACY(0), VARINT(1), DELTA(2);
+		
+		public static final int COMPACT_MARKER = Integer.MIN_VALUE;
+		
+		private final int version;
+		
+		private ValuesFormat(int version) {
+			this.version = version;
+		}
+		
+		public int getVersion() {
+			return version;
+		}
+		
+		public static ValuesFormat getFormat(int version) throws IOException {
+			for(ValuesFormat format : values()){
+				if(format.version == version)
+					return format;
+			}
+			throw new IOException("Unsupported Values format version " + version);
+		}
+		
+		/**
+		 * @param name the KM.compactFormat setting: none, varint or delta
+		 */
+		public static ValuesFormat getFormat(String name) {
+			if(name == null || name.trim().equalsIgnoreCase("none"))
+				return LEGACY;
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("ERROR: undefined values format " + name + ", using LEGACY");
+				return LEGACY;
+			}
+		}
+	}
+	
+	public static enum Counter{
+		DISTANCE_COMPUTATIONS, DISTANCE_COMPUTATIONS_SAVED,
+		COMBINED_PARTIAL_CENTROIDS, SHUFFLE_BYTES_SAVED,
+		CACHED_VECTORS, SEED_COST,
+		//centroid movement, squared distances as in KM.convergenceDelta
+		UNCONVERGED_CENTROIDS, TOTAL_SHIFT,
+		VECTORS_PROCESSED, CLASSIFY_NANOS, PARTIAL_CENTROIDS_EMITTED,
+		CENTROID_LOAD_NANOS, REDUCE_MERGE_NANOS,
+		GENERATED_VECTORS
+	}
+	
 	public static class Values implements Writable{
 		private int valCount;
 		private List<Value> values;
+		private VectorBlock block;
+		private ValuesFormat format = ValuesFormat.LEGACY;
 		
 		public Values(){
 			valCount = 0;
@@ -54,6 +178,17 @@ public class MKMTypes {
 			values = new ArrayList<Value>();
 		}
 		
+		public ValuesFormat getFormat() {
+			return format;
+		}
+		
+		/**
+		 * @param format the encoding used by write; readFields detects it
+		 */
+		public void setFormat(ValuesFormat format) {
+			this.format = format;
+		}
+		
 		public int getValCount() {
 			return valCount;
 		}
@@ -62,42 +197,97 @@ public class MKMTypes {
 			this.valCount = valCount;
 		}
 		
+		/**
+		 * Materializes Value objects if the batch was read from the wire.
+		 * Use {@link #getBlock()} on hot paths instead.
+		 */
 		public List<Value> getValues() {
+			if(values == null){
+				values = block.toValues();
+			}
 			return values;
 		}
 		
 		public void setValues(List<Value> values) {
 			this.values = values;
 			this.valCount = values.size();
+			this.block = null;
 		}
 		
 		public void addValues(List<Value> values){
+			List<Value> current = getValues();
 			for(Value val : values){
-				this.values.add(val);
+				current.add(val);
 			}
 			this.valCount += values.size();
+			this.block = null;
+		}
+		
+		/**
+		 * Wraps rows that are already decoded, e.g. one chunk of a partition
+		 * read by {@link ChunkedValuesRecordReader}.
+		 */
+		public void setBlock(VectorBlock block) {
+			this.block = block;
+			this.values = null;
+			this.valCount = block.getCount();
+		}
+		
+		/**
+		 * @return the batch as one flat row-major block
+		 */
+		public VectorBlock getBlock() throws IOException {
+			if(block == null){
+				block = new VectorBlock();
+				for(Value val : values){
+					block.add(val);
+				}
+			}
+			return block;
 		}
 		
 		@Override
 		public void readFields(DataInput in) throws IOException {
-			valCount = in.readInt();
-			values = new ArrayList<Value>();
+			int first = in.readInt();
+			if(block == null)
+				block = new VectorBlock();
+			block.clear();
+			values = null;
+			if(first == ValuesFormat.COMPACT_MARKER){
+				format = ValuesFormat.getFormat(in.readByte());
+				valCount = VectorBlock.readVarInt(in);
+				block.readCompact(in, valCount, VectorBlock.readVarInt(in), format == ValuesFormat.DELTA);
+				return;
+			}
+			format = ValuesFormat.LEGACY;
+			valCount = first;
+			block.ensureCapacity(valCount);
 			for(int i = 0; i < valCount; i++){
-				Value val = new Value();
-				val.readFields(in);
-				values.add(val);
+				block.readVector(in);
 			}
 		}
 		
 		@Override
 		public void write(DataOutput out) throws IOException {
+			if(format != ValuesFormat.LEGACY){
+				VectorBlock rows = getBlock();
+				out.writeInt(ValuesFormat.COMPACT_MARKER);
+				out.writeByte(format.getVersion());
+				rows.writeCompact(out, format == ValuesFormat.DELTA);
+				return;
+			}
 			out.writeInt(valCount);
-			if(values != null && !values.isEmpty()){
+			if(values != null){
 				for(Value value : values){
 					value.write(out);
 				}
 			}
-			if(DEBUG) System.out.println("ValCount : " + valCount + ", #values "+ values.size());
+			else {
+				for(int i = 0; i < block.getCount(); i++){
+					block.writeVector(i, out);
+				}
+			}
+			if(DEBUG) System.out.println("ValCount : " + valCount);
 		}
 	}
 }
@@ -2,9 +2,21 @@ package org.ncsu.sys.MKmeans;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -15,7 +27,10 @@ import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.SequenceFile.Reader;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.ncsu.sys.MKmeans.MKMTypes.CoordinateType;
 import org.ncsu.sys.MKmeans.MKMTypes.Values;
+import org.ncsu.sys.MKmeans.MKMTypes.ValuesFormat;
 import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
 
 public class MKMUtils {
@@ -23,14 +38,8 @@ public class MKMUtils {
 	private static final boolean DEBUG = true;
 	private static final int RAND_SEED = 1000;
 
-	public static int getDistance(Value point, Value centroid) {
-		int distance = 0;
-		int[] pointCoords = point.getCoordinates();
-		int[] centCoords = centroid.getCoordinates();
-		for(int i = 0; i < pointCoords.length; i++){
-			distance += (pointCoords[i] - centCoords[i]) * (pointCoords[i] - centCoords[i]); 
-		}
-		return distance;
+	public static long getDistance(Value point, Value centroid) {
+		return getDistance(point.getCoordinates(), centroid.getCoordinates());
 	}
 
 	public static List<Value> getPartialCentroidsFromFile(Path filePath) {
@@ -69,22 +78,47 @@ public class MKMUtils {
 	
 	public static List<Value> getCentroidsFromFile(Path filePath, boolean isReduceOutput) {
 		List<Value> partialCentroids = new ArrayList<Value>();
+		try {
+			readCentroids(filePath, isReduceOutput, partialCentroids);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return partialCentroids;
+	}
+	
+	/**
+	 * Like getCentroidsFromFile, but a missing or unreadable file fails
+	 * instead of leaving the centroids read so far; for the tasks, which
+	 * must not run an iteration against part of the centroids.
+	 */
+	public static List<Value> readCentroids(Path filePath, boolean isReduceOutput) throws IOException {
+		List<Value> centroids = new ArrayList<Value>();
+		readCentroids(filePath, isReduceOutput, centroids);
+		return centroids;
+	}
+	
+	private static void readCentroids(Path filePath, boolean isReduceOutput, List<Value> partialCentroids)
+			throws IOException {
 		Configuration conf = new Configuration();
 		Reader reader = null;
 		try {
 			FileSystem fs = filePath.getFileSystem(conf);
-			if(isReduceOutput){
+			//a directory holds one part file per reducer; together they are one centroid set
+			if(isReduceOutput || fs.getFileStatus(filePath).isDirectory()){
 				FileStatus[] parts = fs.listStatus(filePath);
 			    for (FileStatus part : parts) {
 			      String name = part.getPath().getName();
 			      if (name.startsWith("part") && !name.endsWith(".crc")) {
+			        if(reader != null)
+			          reader.close();
 			        reader = new SequenceFile.Reader(fs, part.getPath(), conf);
 			        try {
 			          Key key = reader.getKeyClass().asSubclass(Key.class).newInstance();
-			          Value value = new Value();
+			          //Value, or DoubleValue for KM.coordinates=double
+			          Value value = newValue(reader, conf);
 			          while (reader.next(key, value)) {
 			        	  partialCentroids.add(value);
-			        	  value = new Value();
+			        	  value = newValue(reader, conf);
 			          }
 			        } catch (InstantiationException e) { // shouldn't happen
 			          e.printStackTrace();
@@ -107,131 +141,368 @@ public class MKMUtils {
 				} catch (IllegalAccessException e) {
 						throw new IllegalStateException(e);
 				}
-				Value value = new Value();
+				Value value = newValue(reader, conf);
 				while (reader.next(key, value)) {
 					partialCentroids.add(value);
-					value = new Value();
+					value = newValue(reader, conf);
 				}
 			}
-        } catch (IOException e) {
-			e.printStackTrace();
 		} finally {
-        	try{
-        		if(reader != null)
-        			reader.close();
-        	} catch (IOException e) {
-        		e.printStackTrace();
-        	}
-        }
-		return partialCentroids;
+			if(reader != null)
+				reader.close();
+		}
+	}
+	
+	private static Value newValue(Reader reader, Configuration conf) {
+		return (Value) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+	}
+	
+	public static long getDistance(int[] point, int[] centroid) {
+		return getDistance(point, 0, centroid, 0, point.length);
+	}
+	
+	/**
+	 * Squared euclidean distance between the row of a {@link VectorBlock}
+	 * starting at offset and a centroid row of another flat array, without
+	 * materializing either vector.
+	 *
+	 * Differences and squares are taken in 64 bits, so the result is exact as
+	 * long as the sum fits in a long (coordinates below 10^6 stay exact up to
+	 * millions of dimensions); the int arithmetic used before overflowed as
+	 * soon as one difference passed 46341. Four independent accumulators
+	 * break the dependency chain of the sum so the JIT can keep several
+	 * multiplies in flight.
+	 */
+	public static long getDistance(int[] points, int offset, int[] centroids, int cOffset, int dimension) {
+		long d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+		int i = 0;
+		for(int limit = dimension - 3; i < limit; i += 4){
+			long diff0 = (long)points[offset + i] - centroids[cOffset + i];
+			long diff1 = (long)points[offset + i + 1] - centroids[cOffset + i + 1];
+			long diff2 = (long)points[offset + i + 2] - centroids[cOffset + i + 2];
+			long diff3 = (long)points[offset + i + 3] - centroids[cOffset + i + 3];
+			d0 += diff0 * diff0;
+			d1 += diff1 * diff1;
+			d2 += diff2 * diff2;
+			d3 += diff3 * diff3;
+		}
+		for(; i < dimension; i++){
+			long diff = (long)points[offset + i] - centroids[cOffset + i];
+			d0 += diff * diff;
+		}
+		return (d0 + d1) + (d2 + d3);
 	}
 	
-	public static int getDistance(int[] point, int[] centroid) {
-		int distance = 0;
-		for(int i = 0; i < point.length; i++){
-			distance += (point[i] - centroid[i]) * (point[i] - centroid[i]); 
+	/**
+	 * Squared euclidean distance between two double rows, for
+	 * KM.coordinates=double; unrolled like the long kernel.
+	 */
+	public static double getDistance(double[] points, int offset, double[] centroids, int cOffset, int dimension) {
+		double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+		int i = 0;
+		for(int limit = dimension - 3; i < limit; i += 4){
+			double diff0 = points[offset + i] - centroids[cOffset + i];
+			double diff1 = points[offset + i + 1] - centroids[cOffset + i + 1];
+			double diff2 = points[offset + i + 2] - centroids[cOffset + i + 2];
+			double diff3 = points[offset + i + 3] - centroids[cOffset + i + 3];
+			d0 += diff0 * diff0;
+			d1 += diff1 * diff1;
+			d2 += diff2 * diff2;
+			d3 += diff3 * diff3;
 		}
-		return distance;
+		for(; i < dimension; i++){
+			double diff = points[offset + i] - centroids[cOffset + i];
+			d0 += diff * diff;
+		}
+		return (d0 + d1) + (d2 + d3);
+	}
+	
+	/**
+	 * @return the coordinates of a DoubleValue, or a double copy of an int
+	 * vector's
+	 */
+	public static double[] getDoubleCoordinates(Value value) {
+		if(value instanceof DoubleValue)
+			return ((DoubleValue) value).getDoubleCoordinates();
+		int[] coords = value.getCoordinates();
+		double[] copy = new double[coords.length];
+		for(int i = 0; i < coords.length; i++)
+			copy[i] = coords[i];
+		return copy;
+	}
+	
+	/**
+	 * Squared euclidean norm of a dense row.
+	 */
+	public static long getSquaredNorm(int[] data, int offset, int dimension) {
+		long norm = 0;
+		for(int i = 0; i < dimension; i++)
+			norm += (long)data[offset + i] * data[offset + i];
+		return norm;
+	}
+	
+	/**
+	 * Squared euclidean distance between a sparse vector and a dense centroid
+	 * row, as |x|^2 - 2 x.c + |c|^2 with both squared norms precomputed, so
+	 * only the nnz coordinates of x are touched. Exact in 64 bits under the
+	 * same bounds as the dense distance.
+	 */
+	public static long getSparseDistance(SparseValue point, int[] centroids, int cOffset, long centroidNorm) {
+		int[] indices = point.getIndices();
+		int[] values = point.getValues();
+		int nnz = point.getNnz();
+		long dot = 0;
+		for(int i = 0; i < nnz; i++)
+			dot += (long)values[i] * centroids[cOffset + indices[i]];
+		return point.getNorm() - 2 * dot + centroidNorm;
+	}
+	
+	/**
+	 * The mean of a partial centroid, truncated to int coordinates.
+	 * 
+	 * @return the new centroid, or null if no vector was accumulated
+	 */
+	public static Value computeCentroid(PartialCentroid pCent) {
+		return computeCentroid(pCent, CoordinateType.INT);
+	}
+	
+	/**
+	 * The mean of a partial centroid: truncated to int coordinates, or as a
+	 * {@link DoubleValue} for CoordinateType.DOUBLE.
+	 * 
+	 * @return the new centroid, or null if no vector was accumulated
+	 */
+	public static Value computeCentroid(PartialCentroid pCent, CoordinateType type) {
+		if(pCent.getCount() == 0)
+			return null;
+		Value newCentroid;
+		if(type == CoordinateType.DOUBLE){
+			newCentroid = VectorFactory.getInstance(VectorType.DOUBLE, pCent.getDimension());
+			double[] sums = pCent.getDoubleSums();
+			double[] newCoords = ((DoubleValue) newCentroid).getDoubleCoordinates();
+			for(int i = 0; i < sums.length; i++){
+				newCoords[i] = sums[i] / pCent.getCount();
+			}
+		}
+		else{
+			newCentroid = VectorFactory.getInstance(VectorType.CENTROID, pCent.getDimension());
+			long[] sums = pCent.getSums();
+			int[] newCoords = newCentroid.getCoordinates();
+			for(int i = 0; i < sums.length; i++){
+				newCoords[i] = (int)(sums[i]/pCent.getCount());
+			}
+		}
+		newCentroid.setCentroidIdx(pCent.getCentroidIdx());
+		return newCentroid;
+	}
+	
+	/**
+	 * A centroid set has converged when no centroid moved further than
+	 * convergenceDelta (squared distance) from its previous position.
+	 */
+	public static boolean isConverged(List<Value> oldCentroids, List<Value> newCentroids,
+			int convergenceDelta) throws IOException {
+		Hashtable<Integer, Value> newCentroidMap = new Hashtable<Integer, Value>();
+		for(Value centroid : newCentroids){
+			newCentroidMap.put(centroid.getCentroidIdx(), centroid);
+		}
+		for(Value oldCentroid : oldCentroids){
+			Value newCentroid = newCentroidMap.get(oldCentroid.getCentroidIdx());
+			if(newCentroid == null)
+				throw new IOException("New centroid is null");
+			if(getDistance(oldCentroid.getCoordinates(), newCentroid.getCoordinates()) > convergenceDelta)
+				return false;
+		}
+		return true;
 	}
 	
 	//public static int[] ratio = {2, 4, 8, 16, 32, 64};
 	
 	/**
+	 * Writes the skewed "astro-physics" layout. The space [0, maxNum)^dimension
+	 * is cut into segPerDim^dimension {@link SubSpace}s. Subspace s gets
+	 * taskStart + s * diffratio vectors (isLinear) or taskStart * diffratio^s,
+	 * drawn directly inside its bounds; the total is the sum of these quotas,
+	 * count is not used.
 	 * 
+	 * File i of in holds the subspaces [i * spaces / in.length, (i + 1) *
+	 * spaces / in.length), streamed as Values records of at most
+	 * KM.gen.batchSize (or KM.recordBatchSize, see prepareInput) vectors,
+	 * followed by one CENTROID record with the k initial centers, which also
+	 * go to center. The files are written by KM.gen.threads threads
+	 * (default: one per core).
 	 * 
-	 * @param count
-	 * @param k
-	 * @param dimension
-	 * @param segPerDim
-	 * @param maxNum
-	 * @param taskCount
-	 * @param conf
-	 * @param in
-	 * @param center
-	 * @param fs
 	 * @param ratio // <start> <offset> <linear/exponential> instead of ratio
 	 */
-	public static void prepareAstroPhyInput(int count, int k, int dimension, int segPerDim, 
-			int maxNum, int taskCount, Configuration conf, Path[] in, Path center, FileSystem fs, 
-			int taskStart, int diffratio, boolean isLinear){
-		int ki = 0;
-		int spaceCount = (int) Math.pow(segPerDim, dimension);
-		int segLength = maxNum/segPerDim;
-		Values centers = new Values(k);
-		List<Value> centerArray = centers.getValues();
-		SubSpace[] space = new SubSpace[spaceCount]; 
-		Random r = new Random(RAND_SEED);
-		
-		initSpace(space, taskStart, diffratio, isLinear);
+	public static void prepareAstroPhyInput(int count, int k, final int dimension, int segPerDim, 
+			int maxNum, int taskCount, final Configuration conf, Path[] in, Path center, final FileSystem fs, 
+			int taskStart, int diffratio, boolean isLinear) throws IOException {
+		long spaceCount = 1;
+		for(int d = 0; d < dimension; d++){
+			spaceCount *= segPerDim;
+			if(spaceCount > Integer.MAX_VALUE)
+				throw new IOException(segPerDim + "^" + dimension + " subspaces are too many");
+		}
+		if(segPerDim < 1 || maxNum < segPerDim)
+			throw new IOException("Cannot cut [0, " + maxNum + ") into " + segPerDim + " segments");
+		final SubSpace[] space = new SubSpace[(int)spaceCount];
+		initSpace(space, taskStart, diffratio, isLinear, segPerDim, maxNum, dimension);
+		final Values centers = pickCenters(space, k, dimension);
 		
-		while(!isSpaceFull(space)){
-			int[] arr = new int[dimension];
-			for (int d = 0; d < dimension; d++) {
-				arr[d] = r.nextInt(maxNum);
-			}
-			Value vector = new Value(dimension);
-			vector.setCoordinates(arr);
-			int idx = assignSubSpace(vector, segLength, segPerDim, dimension);
-			if(space[idx].offer(vector) && k < ki){
-				vector.setCentroidIdx(ki++);
-				centerArray.add(vector);
-			}
+		if (fs.exists(center))
+			fs.delete(center, true);
+		SequenceFile.Writer centerWriter = SequenceFile.createWriter(fs, conf, center, Key.class, Value.class,
+				CompressionType.NONE);
+		try {
+			for(Value vector : centers.getValues())
+				centerWriter.append(new Key(vector.getCentroidIdx() % taskCount, VectorType.CENTROID), vector);
+		} finally {
+			centerWriter.close();
 		}
 		
 		//write vectors from each of the subspace and the centers to files
-		int chunkSize = spaceCount / taskCount;
-		for(int i = 0; i < in.length; i ++){
-			try {
-				SequenceFile.Writer dataWriter = SequenceFile.createWriter(fs, conf,
-				    in[i], Key.class, Values.class, CompressionType.NONE);
-				//Write subspace chunks to files
-				int delta = chunkSize > (spaceCount - i*chunkSize) ? (spaceCount - i*chunkSize) : chunkSize;
-				Values values = new Values();
-				for(int j = i * chunkSize; j < (i * chunkSize) + delta; j++){
-					values.addValues(space[j].getVectors());
-				}
-				dataWriter.append(new Key(i, VectorType.REGULAR), values);
-				dataWriter.append(new Key(1, VectorType.CENTROID),centers);
-				dataWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		int threads = conf.getInt("KM.gen.threads", 0);
+		if(threads < 1)
+			threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, in.length)));
+		try {
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for(int i = 0; i < in.length; i ++){
+				final int task = i;
+				final Path file = in[i];
+				final int from = (int)(spaceCount * i / in.length);
+				final int to = (int)(spaceCount * (i + 1) / in.length);
+				results.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return writeSubSpaces(space, from, to, task, dimension, centers, file, conf, fs);
+					}
+				}));
 			}
+			for(Future<Long> result : results)
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException("Writing the subspaces failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 	
-	private static void initSpace(SubSpace[] space, int start, int diffratio, boolean isLinear) {
-		int idSeq = 0;
-		int capacity = start;
-		for(SubSpace sspace : space){
+	private static void initSpace(SubSpace[] space, long start, int diffratio, boolean isLinear,
+			int segPerDim, int maxNum, int dimension) throws IOException {
+		long capacity = start;
+		for(int idSeq = 0; idSeq < space.length; idSeq++){
 			if(idSeq != 0){
-				if(isLinear){
-					capacity += diffratio;
-				}
-				else
-				{
-					capacity *= diffratio;
+				try {
+					capacity = isLinear ? Math.addExact(capacity, diffratio) : Math.multiplyExact(capacity, diffratio);
+				} catch (ArithmeticException e) {
+					throw new IOException("The quota of subspace " + idSeq + " overflows");
 				}
 			}
-			sspace = new SubSpace(idSeq++, capacity);
+			space[idSeq] = new SubSpace(idSeq, Math.max(0, capacity), segPerDim, maxNum, dimension);
 		}
 	}
-
-	private static int assignSubSpace(Value vector, int segLength, int segPerDim, int dimension){
-		int subSpaceId = 0;
-		int[] coords = vector.getCoordinates();
-		for(int i = 0; i < vector.getDimension(); i++){
-			subSpaceId += (coords[i]/segLength) * (int)Math.pow(segPerDim, i);
+	
+	/**
+	 * Takes the k centers round-robin from min(k, subspaces) subspaces spread
+	 * evenly over the ids, each the next vector of its subspace, so every
+	 * center is also a data point.
+	 */
+	private static Values pickCenters(SubSpace[] space, int k, int dimension) {
+		List<Value> centerArray = new ArrayList<Value>(k);
+		int spread = Math.min(k, space.length);
+		SplittableRandom[] streams = new SplittableRandom[spread];
+		boolean drawn = true;
+		for(long round = 0; drawn && centerArray.size() < k; round++){
+			drawn = false;
+			for(int c = 0; c < spread && centerArray.size() < k; c++){
+				SubSpace sspace = space[(int)((long)c * space.length / spread)];
+				if(round >= sspace.getCapacity())
+					continue;
+				if(streams[c] == null)
+					streams[c] = sspace.newRandom(RAND_SEED);
+				Value vector = new Value(dimension, centerArray.size());
+				sspace.next(streams[c], vector.getCoordinates());
+				centerArray.add(vector);
+				drawn = true;
+			}
 		}
-		return subSpaceId;
+		Values centers = new Values();
+		centers.setValues(centerArray);
+		return centers;
 	}
 	
-	private static boolean isSpaceFull(SubSpace[] space) {
-		for(SubSpace sspace : space){
-			if(!sspace.isFull())
-				return false;
+	/**
+	 * Streams the subspaces [from, to) into one file, one batch at a time.
+	 * 
+	 * @return the number of vectors written
+	 */
+	private static long writeSubSpaces(SubSpace[] space, int from, int to, int task, int dimension,
+			Values centers, Path file, Configuration conf, FileSystem fs) throws IOException {
+		int batchSize = Math.max(1, conf.getInt("KM.gen.batchSize", 65536));
+		if(conf.getBoolean("KM.vectorPerRecord", false))
+			batchSize = Math.min(batchSize, Math.max(1, conf.getInt("KM.recordBatchSize", 1024)));
+		if (fs.exists(file))
+			fs.delete(file, true);
+		SequenceFile.Writer dataWriter = SequenceFile.createWriter(fs, conf,
+			    file, Key.class, Values.class, CompressionType.NONE);
+		long written = 0;
+		try {
+			Key dataKey = new Key(task, VectorType.REGULAR);
+			VectorBlock block = new VectorBlock(dimension, batchSize);
+			Values values = new Values();
+			values.setFormat(ValuesFormat.getFormat(conf.get("KM.compactFormat", "none")));
+			int[] row = new int[dimension];
+			for(int s = from; s < to; s++){
+				SplittableRandom random = space[s].newRandom(RAND_SEED);
+				for(long n = 0; n < space[s].getCapacity(); n++){
+					space[s].next(random, row);
+					block.add(row, MKMTypes.UNDEF_VAL);
+					if(block.getCount() == batchSize){
+						values.setBlock(block);
+						dataWriter.append(dataKey, values);
+						written += block.getCount();
+						block.clear();
+					}
+				}
+			}
+			if(block.getCount() > 0 || written == 0){
+				values.setBlock(block);
+				dataWriter.append(dataKey, values);
+				written += block.getCount();
+			}
+			dataWriter.append(new Key(1, VectorType.CENTROID), centers);
+		} finally {
+			dataWriter.close();
 		}
-		//all subspaces are full
-		return true;
+		if(DEBUG) System.out.println("Done writing " + written + " vectors of subspaces " + from + " to " + (to - 1)
+				+ " to " + file);
+		return written;
+	}
+
+	/**
+	 * The data files written by the generators under dataDir, in a fixed
+	 * order so seeded runs read them the same way.
+	 */
+	public static List<Path> listInputs(FileSystem fs, Path dataDir) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		for(FileStatus status : fs.listStatus(dataDir)){
+			String name = status.getPath().getName();
+			if(status.isFile() && !name.startsWith("_") && !name.startsWith("."))
+				files.add(status.getPath());
+		}
+		if(files.isEmpty())
+			throw new IOException("No input under " + dataDir);
+		//Path is a raw Comparable in Hadoop 2; its order is the one of its URI
+		Collections.sort(files, new Comparator<Path>() {
+			public int compare(Path a, Path b) {
+				return a.toUri().compareTo(b.toUri());
+			}
+		});
+		return files;
 	}
 
 	public static void prepareInput(int count, int k, int dimension, int taskCount,
@@ -261,11 +532,23 @@ public class MKMUtils {
 		Values centers = new Values(k);
 		List<Value> centerArray = centers.getValues();
 		int ki = 0;
+		//small Values records of KM.recordBatchSize vectors, with sync markers
+		//between them, keep the partitions splittable
+		boolean vectorPerRecord = conf.getBoolean("KM.vectorPerRecord", false);
+		int recordBatchSize = Math.max(1, conf.getInt("KM.recordBatchSize", 1024));
+		//KM.sparseNnz > 0 writes one SparseValue per record with that many non-zeros
+		int sparseNnz = Math.min(conf.getInt("KM.sparseNnz", 0), dimension);
+		//KM.coordinates=double writes one DoubleValue per record with fractional coordinates
+		boolean real = CoordinateType.getType(conf.get("KM.coordinates", "int")) == CoordinateType.DOUBLE;
+		boolean pointPerRecord = sparseNnz > 0 || real;
 		for(int i =0 ; i < in.length; i++){
 			if (fs.exists(in[i]))
 				fs.delete(in[i], true);
 			final SequenceFile.Writer dataWriter = SequenceFile.createWriter(fs, conf,
-			        in[i], Key.class, Values.class, CompressionType.NONE);
+			        in[i], Key.class, sparseNnz > 0 ? SparseValue.class : real ? DoubleValue.class
+			        		: Values.class,
+			        CompressionType.NONE);
+			Key dataKey = new Key(i, VectorType.REGULAR);
 			Random r = new Random(1000);
 			//maximum index in this file
 			int maxIdx = count < (i+1)*count/in.length ? count : (i+1)*count/in.length;
@@ -273,23 +556,56 @@ public class MKMUtils {
 			List<Value> valArray = new ArrayList<Value>();
 			
 			for (int j = i*count/in.length ; j < maxIdx ; j++) {
-				int[] arr = new int[dimension];
-				for (int d = 0; d < dimension; d++) {
-					arr[d] = r.nextInt(count);
+				Value vector;
+				if(sparseNnz > 0){
+					vector = randomSparse(r, dimension, sparseNnz, count);
+				}
+				else if(real){
+					DoubleValue point = (DoubleValue) VectorFactory.getInstance(VectorType.DOUBLE, dimension);
+					double[] coords = point.getDoubleCoordinates();
+					for (int d = 0; d < dimension; d++) {
+						coords[d] = r.nextDouble() * count;
+					}
+					vector = point;
+				}
+				else{
+					int[] arr = new int[dimension];
+					for (int d = 0; d < dimension; d++) {
+						arr[d] = r.nextInt(count);
+					}
+					vector = new Value(dimension);
+					vector.setCoordinates(arr);
 				}
-				Value vector = new Value(dimension);
-				vector.setCoordinates(arr);
-				valArray.add(vector);
 				if (k > ki) {
 					vector.setCentroidIdx(cIdxSeq++);
 					//Need this line for Phadoop and write centers along with the data and comment the one below it.
 //					centerArray[ki++] = vector;
-					centerWriter.append(new Key(r.nextInt(taskCount), VectorType.CENTROID),vector);
+					//centers are always dense; double ones start out as their int rounding
+					Value denseCenter = vector;
+					if(vector instanceof SparseValue || vector instanceof DoubleValue){
+						denseCenter = new Value();
+						denseCenter.copy(vector);
+					}
+					centerWriter.append(new Key(r.nextInt(taskCount), VectorType.CENTROID),denseCenter);
 					ki++;
 				}
+				if(pointPerRecord)
+					dataWriter.append(dataKey, vector);
+				else{
+					valArray.add(vector);
+					if(vectorPerRecord && valArray.size() == recordBatchSize){
+						values.setValues(valArray);
+						values.setFormat(ValuesFormat.getFormat(conf.get("KM.compactFormat", "none")));
+						dataWriter.append(dataKey, values);
+						valArray = new ArrayList<Value>();
+					}
+				}
+			}
+			if(!pointPerRecord && !(vectorPerRecord && valArray.isEmpty())){
+				values.setValues(valArray);
+				values.setFormat(ValuesFormat.getFormat(conf.get("KM.compactFormat", "none")));
+				dataWriter.append(dataKey, values);
 			}
-			values.setValues(valArray);
-			dataWriter.append(new Key(i, VectorType.REGULAR), values);
 			dataWriter.close();
 			if(DEBUG) System.out.println("Done writing to :"+ in[i].toString());
 		}
@@ -297,6 +613,29 @@ public class MKMUtils {
 	}
 	
 	
+	/**
+	 * A vector with nnz distinct random non-zero coordinates in [1, range].
+	 */
+	private static SparseValue randomSparse(Random r, int dimension, int nnz, int range) {
+		int[] indices = new int[nnz];
+		int[] values = new int[nnz];
+		//Floyd's sampling of nnz distinct indices
+		Set<Integer> chosen = new HashSet<Integer>(nnz * 2);
+		for(int j = dimension - nnz; j < dimension; j++){
+			int t = r.nextInt(j + 1);
+			chosen.add(chosen.contains(t) ? j : t);
+		}
+		int n = 0;
+		for(int index : chosen)
+			indices[n++] = index;
+		Arrays.sort(indices);
+		for(int j = 0; j < nnz; j++)
+			values[j] = 1 + r.nextInt(Math.max(1, range));
+		SparseValue vector = (SparseValue) VectorFactory.getInstance(VectorType.SPARSE, dimension);
+		vector.set(indices, values, nnz);
+		return vector;
+	}
+	
 	private static int getTaskIndex(int vectorNumber, int singlePart, 
 								int taskCount, int[] distribution) {
 		int taskIdx = -1;
@@ -4,9 +4,20 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+/**
+ * Running sum and count of the vectors assigned to one centroid. The sums
+ * are kept in 64 bits: an int sum overflows after a few thousand vectors
+ * with six-digit coordinates.
+ *
+ * Once a {@link DoubleValue} is added the sums switch to doubles for good;
+ * such a partial is written with a negative dimension followed by double
+ * sums.
+ */
 public class PartialCentroid extends Value {
 
 	private int count;
+	private long[] sums;
+	private double[] doubleSums;
 	
 	public PartialCentroid(){
 		super();
@@ -14,7 +25,10 @@ public class PartialCentroid extends Value {
 	}
 	
 	public PartialCentroid(int dimension) {
-		super(dimension);
+		super();
+		setDimension(dimension);
+		setCentroidIdx(MKMTypes.UNDEF_VAL);
+		this.sums = new long[dimension];
 		this.count = 0;
 	}
 
@@ -26,40 +40,205 @@ public class PartialCentroid extends Value {
 		this.count = count;
 	}
 	
+	/**
+	 * @return the int sums; rounded copies once the sums are doubles
+	 */
+	public long[] getSums() {
+		if(doubleSums == null)
+			return sums;
+		long[] rounded = new long[doubleSums.length];
+		for(int i = 0; i < rounded.length; i++)
+			rounded[i] = Math.round(doubleSums[i]);
+		return rounded;
+	}
+	
+	/**
+	 * @return the sums as doubles, a copy while they are still ints
+	 */
+	public double[] getDoubleSums() {
+		if(doubleSums != null)
+			return doubleSums;
+		double[] copy = new double[sums.length];
+		for(int i = 0; i < copy.length; i++)
+			copy[i] = sums[i];
+		return copy;
+	}
+	
+	public boolean hasDoubleSums() {
+		return doubleSums != null;
+	}
+	
+	private void toDoubleSums() {
+		if(doubleSums == null){
+			doubleSums = getDoubleSums();
+			sums = null;
+		}
+	}
+	
+	/**
+	 * @return the mean of the accumulated vectors, truncated like the
+	 * centroids computed by the reducer
+	 */
+	@Override
+	public int[] getCoordinates() {
+		int[] mean = new int[getDimension()];
+		for(int i = 0; i < mean.length; i++){
+			if(count == 0)
+				mean[i] = 0;
+			else
+				mean[i] = doubleSums != null ? (int)(doubleSums[i] / count) : (int)(sums[i] / count);
+		}
+		return mean;
+	}
+	
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		super.readFields(in);
+		int dimension = in.readInt();
+		if(dimension < 0){
+			dimension = -dimension;
+			if(doubleSums == null || doubleSums.length != dimension)
+				doubleSums = new double[dimension];
+			sums = null;
+			setDimension(dimension);
+			for(int i = 0; i < dimension; i++){
+				doubleSums[i] = in.readDouble();
+			}
+		}
+		else{
+			if(sums == null || sums.length != dimension)
+				sums = new long[dimension];
+			doubleSums = null;
+			setDimension(dimension);
+			for(int i = 0; i < dimension; i++){
+				sums[i] = in.readLong();
+			}
+		}
+		setCentroidIdx(in.readInt());
 		this.count = in.readInt();
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
-		super.write(out);
+		if(doubleSums != null){
+			out.writeInt(-getDimension());
+			for(int i = 0; i < getDimension(); i++){
+				out.writeDouble(doubleSums[i]);
+			}
+		}
+		else{
+			out.writeInt(getDimension());
+			for(int i = 0; i < getDimension(); i++){
+				out.writeLong(sums[i]);
+			}
+		}
+		out.writeInt(getCentroidIdx());
 		out.writeInt(this.count);
 	}
 
 	@Override
 	public void copy(Value val) {
-		super.copy(val);
-		if(val instanceof PartialCentroid){
+		setDimension(val.getDimension());
+		setCentroidIdx(val.getCentroidIdx());
+		this.sums = new long[val.getDimension()];
+		this.doubleSums = null;
+		if(val instanceof PartialCentroid && ((PartialCentroid) val).hasDoubleSums()){
+			this.doubleSums = ((PartialCentroid) val).getDoubleSums().clone();
+			this.sums = null;
+			this.count = ((PartialCentroid) val).getCount();
+		}
+		else if(val instanceof PartialCentroid){
+			System.arraycopy(((PartialCentroid) val).getSums(), 0, this.sums, 0, this.sums.length);
 			this.count = ((PartialCentroid) val).getCount();
 		}
+		else if(val instanceof DoubleValue){
+			this.doubleSums = ((DoubleValue) val).getDoubleCoordinates().clone();
+			this.sums = null;
+			this.count = 1;
+		}
 		else{
+			int[] coords = val.getCoordinates();
+			for(int i = 0; i < this.sums.length; i++){
+				this.sums[i] = coords[i];
+			}
 			this.count = 1;
 		}
 	}
 
 	public void addVector(Value point) {
-		int[] coords = point.getCoordinates();
-		int[] thisCoords = this.getCoordinates();
-		for(int i = 0; i < this.getDimension(); i++){
-			thisCoords[i] += coords[i];
-		}
 		if(point instanceof PartialCentroid){
-			this.count += ((PartialCentroid) point).getCount();
+			PartialCentroid partial = (PartialCentroid) point;
+			if(partial.hasDoubleSums() || doubleSums != null){
+				toDoubleSums();
+				double[] pointSums = partial.getDoubleSums();
+				for(int i = 0; i < this.getDimension(); i++){
+					doubleSums[i] += pointSums[i];
+				}
+			}
+			else{
+				long[] pointSums = partial.getSums();
+				for(int i = 0; i < this.getDimension(); i++){
+					sums[i] += pointSums[i];
+				}
+			}
+			this.count += partial.getCount();
+		}
+		else if(point instanceof DoubleValue){
+			toDoubleSums();
+			double[] coords = ((DoubleValue) point).getDoubleCoordinates();
+			for(int i = 0; i < this.getDimension(); i++){
+				doubleSums[i] += coords[i];
+			}
+			this.count++;
 		}
-		else
+		else if(point instanceof SparseValue){
+			SparseValue sparse = (SparseValue) point;
+			int[] indices = sparse.getIndices();
+			int[] values = sparse.getValues();
+			for(int i = 0; i < sparse.getNnz(); i++){
+				if(doubleSums != null)
+					doubleSums[indices[i]] += values[i];
+				else
+					sums[indices[i]] += values[i];
+			}
 			this.count++;
+		}
+		else {
+			addVector(point.getCoordinates(), 0);
+		}
+	}
+
+	/**
+	 * Adds the vector stored at data[offset .. offset+dimension-1], e.g. a
+	 * {@link VectorBlock} row.
+	 */
+	public void addVector(int[] data, int offset) {
+		if(doubleSums != null){
+			for(int i = 0; i < this.getDimension(); i++){
+				doubleSums[i] += data[offset + i];
+			}
+		}
+		else{
+			for(int i = 0; i < this.getDimension(); i++){
+				sums[i] += data[offset + i];
+			}
+		}
+		this.count++;
 	}
 	
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append( "[" + this.getDimension() + "," + this.getCentroidIdx() + "," + this.getCount() + "(");
+		if(doubleSums != null){
+			for(double sum : doubleSums){
+				sb.append(sum + ",");
+			}
+		}
+		else{
+			for(long sum : sums){
+				sb.append(sum + ",");
+			}
+		}
+		sb.append(")] ");
+		return sb.toString();
+	}
 }
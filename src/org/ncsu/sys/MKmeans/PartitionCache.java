@@ -0,0 +1,225 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Node-local cache of decoded input splits (KM.localCache=true).
+ *
+ * The first iteration that maps a split on a node writes its vectors as one
+ * flat file of ints to KM.localCache.dir; later iterations on the same node
+ * map that file read-only and copy rows straight into VectorBlocks instead
+ * of reading and deserializing the SequenceFile again.
+ *
+ * The rows are copied rather than used in place: the assigners and the
+ * PartialCentroid fold work on the int[] of a VectorBlock, and a mapped
+ * buffer has no array behind it. The copy is one bulk get per block of
+ * KM.classifyBatchSize rows, d ints per row against the k * d of assigning
+ * it. Coordinates are stored in the node's native byte order (an entry
+ * never leaves its node), so that get is a plain memory copy rather than a
+ * loop swapping every int.
+ *
+ * A cache file is named after the split (path, start, length) and the input
+ * file's modification time and length, so rewriting the input invalidates
+ * it; stale files of the same split are deleted when a new one is written.
+ * Files are written under a per-attempt temporary name and renamed on
+ * commit, so a failed or speculative attempt never leaves a partial entry.
+ *
+ * Layout: MAGIC, VERSION, dimension (big-endian ints), vector count (long),
+ * then count * dimension coordinates in native order.
+ */
+public class PartitionCache {
+
+	private static final int MAGIC = 0x4B4D4331; // "KMC1"
+	//2: native byte order; older entries fail the check and are rebuilt
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 20;
+	//rows are mapped in segments of at most this many bytes
+	private static final long SEGMENT_BYTES = 256L << 20;
+
+	private final File dir;
+
+	public PartitionCache(Configuration conf) {
+		this.dir = new File(conf.get("KM.localCache.dir", System.getProperty("java.io.tmpdir") + "/kmeans-cache"));
+	}
+
+	private static String splitId(FileSplit split) {
+		return MD5Hash.digest(split.getPath().toString() + ":" + split.getStart() + ":" + split.getLength()).toString();
+	}
+
+	private File entryFor(FileSplit split, Configuration conf) throws IOException {
+		FileSystem fs = split.getPath().getFileSystem(conf);
+		FileStatus status = fs.getFileStatus(split.getPath());
+		return new File(dir, splitId(split) + "-" + status.getModificationTime() + "-" + status.getLen() + ".bin");
+	}
+
+	/**
+	 * @return a reader over the cached vectors of the split, or null on a miss
+	 */
+	public Reader open(FileSplit split, Configuration conf) throws IOException {
+		File entry = entryFor(split, conf);
+		if(!entry.isFile())
+			return null;
+		try {
+			return new Reader(entry);
+		} catch (IOException e) {
+			//unreadable entries are dropped and rebuilt
+			entry.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a new entry for the split; nothing is visible until commit.
+	 */
+	public Writer create(FileSplit split, Configuration conf, String attemptId, int dimension) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Cannot create cache directory " + dir);
+		final String prefix = splitId(split) + "-";
+		File[] stale = dir.listFiles();
+		if(stale != null){
+			for(File file : stale){
+				if(file.getName().startsWith(prefix))
+					file.delete();
+			}
+		}
+		File entry = entryFor(split, conf);
+		return new Writer(entry, new File(dir, "." + entry.getName() + "." + attemptId), dimension);
+	}
+
+	public static class Reader {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int dimension;
+		private final long count;
+		private long position;
+		private IntBuffer segment;
+
+		private Reader(File entry) throws IOException {
+			file = new RandomAccessFile(entry, "r");
+			channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			channel.read(header, 0);
+			header.flip();
+			if(header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION){
+				close();
+				throw new IOException("Not a partition cache file: " + entry);
+			}
+			dimension = header.getInt();
+			count = header.getLong();
+			if(channel.size() != HEADER_BYTES + count * dimension * 4L){
+				close();
+				throw new IOException("Truncated partition cache file: " + entry);
+			}
+			position = 0;
+		}
+
+		public int getDimension() {
+			return dimension;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Appends up to maxRows cached vectors to block.
+		 * 
+		 * @return the number of rows appended, 0 at the end
+		 */
+		public int next(VectorBlock block, int maxRows) throws IOException {
+			if(position >= count)
+				return 0;
+			if(segment == null || !segment.hasRemaining()){
+				long rowBytes = dimension * 4L;
+				long rows = Math.min(count - position, Math.max(1, SEGMENT_BYTES / rowBytes));
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_BYTES + position * rowBytes, rows * rowBytes);
+				segment = mapped.order(ByteOrder.nativeOrder()).asIntBuffer();
+			}
+			int rows = Math.min(maxRows, segment.remaining() / dimension);
+			block.addRows(segment, rows, dimension);
+			position += rows;
+			return rows;
+		}
+
+		public void close() throws IOException {
+			segment = null;
+			file.close();
+		}
+	}
+
+	public static class Writer {
+		private final File entry;
+		private final File temp;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int dimension;
+		private long count;
+		private ByteBuffer buffer;
+
+		private Writer(File entry, File temp, int dimension) throws IOException {
+			this.entry = entry;
+			this.temp = temp;
+			this.dimension = dimension;
+			this.file = new RandomAccessFile(temp, "rw");
+			this.channel = file.getChannel();
+			channel.truncate(0);
+			channel.position(HEADER_BYTES);
+			count = 0;
+		}
+
+		public void append(VectorBlock block) throws IOException {
+			if(block.getCount() == 0)
+				return;
+			if(block.getDimension() != dimension)
+				throw new IOException("Dimension mismatch: cache has " + dimension + ", block has " + block.getDimension());
+			int ints = block.getCount() * dimension;
+			if(buffer == null || buffer.capacity() < ints * 4)
+				buffer = ByteBuffer.allocate(ints * 4).order(ByteOrder.nativeOrder());
+			buffer.clear();
+			buffer.asIntBuffer().put(block.getData(), 0, ints);
+			buffer.limit(ints * 4);
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			count += block.getCount();
+		}
+
+		/**
+		 * Writes the header and publishes the entry atomically.
+		 */
+		public void commit() throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putLong(count);
+			header.flip();
+			channel.write(header, 0);
+			channel.force(false);
+			file.close();
+			if(!temp.renameTo(entry)){
+				temp.delete();
+				throw new IOException("Cannot publish cache entry " + entry);
+			}
+		}
+
+		public void abort() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			temp.delete();
+		}
+	}
+}
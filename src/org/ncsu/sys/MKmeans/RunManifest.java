@@ -0,0 +1,182 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+
+/**
+ * Checkpoint of a k-means run, for KM.resume=true.
+ *
+ * Every iteration writes its centroids to its own iteration-N directory of
+ * the output path, and the job's committer only adds _SUCCESS once all of
+ * them are in place. After the driver has accepted an iteration it commits
+ * a _manifest-N file next to those directories: the run's settings, the
+ * iteration, its centroid directory, whether it converged and the balance
+ * plan for the next one. The file is written under a temporary name and
+ * renamed, so a manifest is either complete or absent; the newest one whose
+ * centroid directory still has its _SUCCESS marker is the resume point.
+ *
+ * With KM.checkpoint.keep=n only the last n iteration directories are kept.
+ */
+public class RunManifest {
+
+	static final String FILE_PREFIX = "_manifest-";
+	static final String ITERATION_PREFIX = "iteration-";
+	private static final String[] SETTINGS = { "KM.k", "KM.dimension", "KM.inputDataPath" };
+
+	private final FileSystem fs;
+	private final Path dir;
+	private final Properties props;
+
+	private RunManifest(FileSystem fs, Path dir, Properties props) {
+		this.fs = fs;
+		this.dir = dir;
+		this.props = props;
+	}
+
+	/**
+	 * Starts the manifest of a new run whose first iteration reads centersIn.
+	 */
+	public static RunManifest create(FileSystem fs, Path dir, Configuration conf, Path centersIn) {
+		Properties props = new Properties();
+		for(String setting : SETTINGS)
+			props.setProperty(setting, conf.get(setting, ""));
+		props.setProperty("initialCenters", centersIn.toString());
+		props.setProperty("iteration", "0");
+		props.setProperty("centers", centersIn.toString());
+		props.setProperty("converged", "false");
+		return new RunManifest(fs, dir, props);
+	}
+
+	/**
+	 * @return the newest committed manifest under dir whose centroids are
+	 * complete, or null if there is none
+	 */
+	public static RunManifest load(FileSystem fs, Path dir) throws IOException {
+		if(!fs.exists(dir))
+			return null;
+		int[] iterations = committedIterations(fs, dir);
+		for(int i = iterations.length - 1; i >= 0; i--){
+			Properties props = new Properties();
+			InputStream in = fs.open(new Path(dir, FILE_PREFIX + iterations[i]));
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			Path centers = new Path(props.getProperty("centers"));
+			if(fs.exists(new Path(centers, FileOutputCommitter.SUCCEEDED_FILE_NAME)))
+				return new RunManifest(fs, dir, props);
+		}
+		return null;
+	}
+
+	private static int[] committedIterations(FileSystem fs, Path dir) throws IOException {
+		FileStatus[] statuses = fs.listStatus(dir);
+		int[] iterations = new int[statuses.length];
+		int n = 0;
+		for(FileStatus status : statuses){
+			String name = status.getPath().getName();
+			if(name.startsWith(FILE_PREFIX))
+				iterations[n++] = Integer.parseInt(name.substring(FILE_PREFIX.length()));
+		}
+		int[] sorted = new int[n];
+		System.arraycopy(iterations, 0, sorted, 0, n);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Refuses to resume a run that was started with other settings.
+	 */
+	public void checkCompatible(Configuration conf) throws IOException {
+		for(String setting : SETTINGS){
+			String recorded = props.getProperty(setting, "");
+			if(!recorded.equals(conf.get(setting, "")))
+				throw new IOException("Cannot resume the run in " + dir + ": " + setting + " was "
+						+ recorded + ", now " + conf.get(setting));
+		}
+	}
+
+	/**
+	 * Records iteration as complete, see the class comment.
+	 */
+	public void commit(int iteration, Path centers, boolean converged, long maxShift,
+			String balancePlan) throws IOException {
+		props.setProperty("iteration", "" + iteration);
+		props.setProperty("centers", centers.toString());
+		props.setProperty("converged", "" + converged);
+		props.setProperty("maxShift", "" + maxShift);
+		if(balancePlan != null)
+			props.setProperty("balancePlan", balancePlan);
+		else
+			props.remove("balancePlan");
+		Path file = new Path(dir, FILE_PREFIX + iteration);
+		Path tmp = new Path(dir, "." + FILE_PREFIX + iteration + ".tmp");
+		OutputStream out = fs.create(tmp, true);
+		try {
+			props.store(out, "k-means run manifest");
+		} finally {
+			out.close();
+		}
+		//a leftover of an earlier attempt at this iteration
+		fs.delete(file, false);
+		if(!fs.rename(tmp, file))
+			throw new IOException("Could not commit " + file);
+	}
+
+	/**
+	 * Deletes the iteration directories and manifests older than the last
+	 * keep iterations; keep <= 0 keeps everything.
+	 */
+	public void retain(int keep) throws IOException {
+		if(keep <= 0)
+			return;
+		int oldest = getIteration() - keep + 1;
+		for(FileStatus status : fs.listStatus(dir)){
+			String name = status.getPath().getName();
+			int iteration;
+			if(name.startsWith(ITERATION_PREFIX))
+				iteration = Integer.parseInt(name.substring(ITERATION_PREFIX.length()));
+			else if(name.startsWith(FILE_PREFIX))
+				iteration = Integer.parseInt(name.substring(FILE_PREFIX.length()));
+			else
+				continue;
+			if(iteration < oldest)
+				fs.delete(status.getPath(), true);
+		}
+	}
+
+	/**
+	 * @return the last complete iteration, 0 before the first
+	 */
+	public int getIteration() {
+		return Integer.parseInt(props.getProperty("iteration"));
+	}
+
+	/**
+	 * @return the centroids of the last complete iteration
+	 */
+	public Path getCenters() {
+		return new Path(props.getProperty("centers"));
+	}
+
+	public boolean isConverged() {
+		return Boolean.parseBoolean(props.getProperty("converged"));
+	}
+
+	/**
+	 * @return the split plan for the next iteration, or null
+	 */
+	public String getBalancePlan() {
+		return props.getProperty("balancePlan");
+	}
+}
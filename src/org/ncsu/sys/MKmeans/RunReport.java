@@ -0,0 +1,131 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.ncsu.sys.MKmeans.MKMTypes.Counter;
+
+/**
+ * Per-iteration metrics of a run, written as report.json and report.csv
+ * under the report directory after every iteration so that a failed run
+ * still leaves the iterations it finished.
+ */
+public class RunReport {
+
+	private static final String[] COLUMNS = {
+		"iteration", "durationMs", "shuffleBytes", "vectors", "distanceComputations",
+		"distanceComputationsSaved", "classifyNanos", "partialCentroidsEmitted",
+		"centroidLoadNanos", "reduceMergeNanos", "unconvergedCentroids", "totalShift",
+		"maxShift", "convergenceDelta", "converged"
+	};
+
+	private final FileSystem fs;
+	private final Path dir;
+	private final List<Map<String, Object>> iterations;
+
+	public RunReport(FileSystem fs, Path dir) {
+		this.fs = fs;
+		this.dir = dir;
+		this.iterations = new ArrayList<Map<String, Object>>();
+	}
+
+	/**
+	 * Takes over the rows of iterations up to lastIteration from the report
+	 * already in the directory, when a run is resumed.
+	 */
+	public void resume(int lastIteration) throws IOException {
+		iterations.clear();
+		Path csv = new Path(dir, "report.csv");
+		if(!fs.exists(csv))
+			return;
+		BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(csv), "UTF-8"));
+		try {
+			String line = in.readLine();
+			while((line = in.readLine()) != null){
+				String[] values = line.split(",");
+				if(values.length != COLUMNS.length || Integer.parseInt(values[0]) > lastIteration)
+					continue;
+				Map<String, Object> row = new LinkedHashMap<String, Object>();
+				for(int c = 0; c < COLUMNS.length; c++)
+					row.put(COLUMNS[c], values[c]);
+				iterations.add(row);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public void addIteration(int iteration, long durationMs, Counters counters, long maxShift,
+			int convergenceDelta, boolean converged) throws IOException {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		row.put("iteration", iteration);
+		row.put("durationMs", durationMs);
+		row.put("shuffleBytes", counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue());
+		row.put("vectors", counters.findCounter(Counter.VECTORS_PROCESSED).getValue());
+		row.put("distanceComputations", counters.findCounter(Counter.DISTANCE_COMPUTATIONS).getValue());
+		row.put("distanceComputationsSaved", counters.findCounter(Counter.DISTANCE_COMPUTATIONS_SAVED).getValue());
+		row.put("classifyNanos", counters.findCounter(Counter.CLASSIFY_NANOS).getValue());
+		row.put("partialCentroidsEmitted", counters.findCounter(Counter.PARTIAL_CENTROIDS_EMITTED).getValue());
+		row.put("centroidLoadNanos", counters.findCounter(Counter.CENTROID_LOAD_NANOS).getValue());
+		row.put("reduceMergeNanos", counters.findCounter(Counter.REDUCE_MERGE_NANOS).getValue());
+		row.put("unconvergedCentroids", counters.findCounter(Counter.UNCONVERGED_CENTROIDS).getValue());
+		row.put("totalShift", counters.findCounter(Counter.TOTAL_SHIFT).getValue());
+		row.put("maxShift", maxShift);
+		row.put("convergenceDelta", convergenceDelta);
+		row.put("converged", converged);
+		iterations.add(row);
+		write();
+	}
+
+	private void write() throws IOException {
+		Writer json = new OutputStreamWriter(fs.create(new Path(dir, "report.json"), true), "UTF-8");
+		try {
+			json.write("{\"iterations\":[");
+			for(int i = 0; i < iterations.size(); i++){
+				json.write(i == 0 ? "\n  {" : ",\n  {");
+				boolean first = true;
+				for(Map.Entry<String, Object> entry : iterations.get(i).entrySet()){
+					json.write((first ? "\"" : ", \"") + entry.getKey() + "\": " + entry.getValue());
+					first = false;
+				}
+				json.write("}");
+			}
+			json.write("\n]}\n");
+		} finally {
+			json.close();
+		}
+		Writer csv = new OutputStreamWriter(fs.create(new Path(dir, "report.csv"), true), "UTF-8");
+		try {
+			csv.write(join(COLUMNS) + "\n");
+			for(Map<String, Object> row : iterations){
+				String[] values = new String[COLUMNS.length];
+				for(int c = 0; c < COLUMNS.length; c++)
+					values[c] = String.valueOf(row.get(COLUMNS[c]));
+				csv.write(join(values) + "\n");
+			}
+		} finally {
+			csv.close();
+		}
+	}
+
+	private static String join(String[] values) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < values.length; i++){
+			if(i > 0)
+				sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+}
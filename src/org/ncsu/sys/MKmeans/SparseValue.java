@@ -0,0 +1,187 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A vector stored as its non-zero coordinates only: strictly increasing
+ * indices and their values, plus the squared norm for the sparse-dense
+ * distance (see {@link MKMUtils#getSparseDistance}).
+ *
+ * Wire format, all varints as in {@link MKMTypes.ValuesFormat}: dimension,
+ * nnz, the indices as gaps to the previous index, the zig-zag values and the
+ * zig-zag centroid index. A record is O(nnz) bytes whatever the dimension.
+ *
+ * getCoordinates() returns a fresh dense copy, so code written for dense
+ * vectors still works, at O(dimension) cost.
+ */
+public class SparseValue extends Value {
+
+	private int nnz;
+	private int[] indices;
+	private int[] values;
+	private long norm;
+
+	public SparseValue(){
+		super();
+		this.nnz = 0;
+	}
+
+	public SparseValue(int dimension){
+		super();
+		setDimension(dimension);
+		setCentroidIdx(MKMTypes.UNDEF_VAL);
+		this.nnz = 0;
+		this.indices = new int[0];
+		this.values = new int[0];
+	}
+
+	/**
+	 * Takes over the first nnz entries of indices and values.
+	 */
+	public void set(int[] indices, int[] values, int nnz) {
+		for(int i = 0; i < nnz; i++){
+			if(indices[i] < 0 || indices[i] >= getDimension() || (i > 0 && indices[i] <= indices[i - 1]))
+				throw new IllegalArgumentException("Sparse indices must increase within [0, "
+						+ getDimension() + "), got " + indices[i] + " at " + i);
+		}
+		this.indices = indices;
+		this.values = values;
+		this.nnz = nnz;
+		computeNorm();
+	}
+
+	public int getNnz() {
+		return nnz;
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public int[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @return the squared euclidean norm
+	 */
+	public long getNorm() {
+		return norm;
+	}
+
+	private void computeNorm() {
+		long sum = 0;
+		for(int i = 0; i < nnz; i++)
+			sum += (long)values[i] * values[i];
+		norm = sum;
+	}
+
+	@Override
+	public int[] getCoordinates() {
+		int[] dense = new int[getDimension()];
+		for(int i = 0; i < nnz; i++)
+			dense[indices[i]] = values[i];
+		return dense;
+	}
+
+	@Override
+	public void setCoordinates(int[] coordinates) {
+		int count = 0;
+		for(int coord : coordinates)
+			if(coord != 0)
+				count++;
+		int[] idx = new int[count];
+		int[] val = new int[count];
+		count = 0;
+		for(int i = 0; i < coordinates.length; i++){
+			if(coordinates[i] != 0){
+				idx[count] = i;
+				val[count++] = coordinates[i];
+			}
+		}
+		setDimension(coordinates.length);
+		set(idx, val, count);
+	}
+
+	@Override
+	public void copy(Value val) {
+		if(!(val instanceof SparseValue)){
+			setCentroidIdx(val.getCentroidIdx());
+			setCoordinates(val.getCoordinates());
+			return;
+		}
+		SparseValue sparse = (SparseValue) val;
+		setDimension(sparse.getDimension());
+		setCentroidIdx(sparse.getCentroidIdx());
+		nnz = sparse.nnz;
+		indices = new int[nnz];
+		values = new int[nnz];
+		System.arraycopy(sparse.indices, 0, indices, 0, nnz);
+		System.arraycopy(sparse.values, 0, values, 0, nnz);
+		norm = sparse.norm;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int dimension = VectorBlock.readVarInt(in);
+		nnz = VectorBlock.readVarInt(in);
+		if(nnz > dimension)
+			throw new IOException("Sparse vector with " + nnz + " non-zeros in dimension " + dimension);
+		setDimension(dimension);
+		if(indices == null || indices.length < nnz){
+			indices = new int[nnz];
+			values = new int[nnz];
+		}
+		int index = -1;
+		for(int i = 0; i < nnz; i++){
+			index += VectorBlock.readVarInt(in) + 1;
+			if(index <= (i == 0 ? -1 : indices[i - 1]) || index >= dimension)
+				throw new IOException("Sparse index " + index + " out of dimension " + dimension);
+			indices[i] = index;
+		}
+		for(int i = 0; i < nnz; i++)
+			values[i] = VectorBlock.unZigZag(VectorBlock.readVarInt(in));
+		setCentroidIdx(VectorBlock.unZigZag(VectorBlock.readVarInt(in)));
+		computeNorm();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		//worst case 5 bytes per varint
+		byte[] buf = new byte[5 * (2 * nnz + 3)];
+		int len = VectorBlock.putVarInt(buf, 0, getDimension());
+		len = VectorBlock.putVarInt(buf, len, nnz);
+		int previous = -1;
+		for(int i = 0; i < nnz; i++){
+			len = VectorBlock.putVarInt(buf, len, indices[i] - previous - 1);
+			previous = indices[i];
+		}
+		for(int i = 0; i < nnz; i++)
+			len = VectorBlock.putVarInt(buf, len, VectorBlock.zigZag(values[i]));
+		len = VectorBlock.putVarInt(buf, len, VectorBlock.zigZag(getCentroidIdx()));
+		out.write(buf, 0, len);
+	}
+
+	@Override
+	public int compareTo(Object o) {
+		int[] coords = getCoordinates();
+		int[] oCoords = ((Value) o).getCoordinates();
+		for(int i = 0; i < coords.length; i++){
+			if(coords[i] != oCoords[i])
+				return coords[i] < oCoords[i] ? -1 : 1;
+		}
+		return 0;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("[" + getDimension() + "," + getCentroidIdx() + "(");
+		for(int i = 0; i < nnz; i++){
+			sb.append(indices[i] + ":" + values[i] + ",");
+		}
+		sb.append(")] ");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,339 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Plans the next iteration's map tasks from the cost measured in the last
+ * one (KM.balance=true).
+ *
+ * Every map task commits a _stats-m-NNNNN side file next to the reducer
+ * output, with one line per byte range it read: the range, the vectors in
+ * it and the nanoseconds spent classifying them. A task that read several
+ * ranges shares its time among them by size. The planner then cuts the
+ * input into KM.balance.tasks groups of about equal cost (default: as many
+ * as last time):
+ * - small-record partitions (KM.vectorPerRecord) are cut at any byte
+ *   offset (the readers move on to the next sync marker), hot ranges into
+ *   several pieces of at least KM.balance.minChunkBytes, and small
+ *   neighbouring ranges are merged into one group;
+ * - Values partitions are read record by record, so they are packed into
+ *   groups, largest cost first onto the least loaded group; a partition
+ *   costing more than one group's share is first cut at the sync markers
+ *   nearest to equal shares, so a hot partition of many Values records is
+ *   spread over several tasks.
+ * {@link BalancedInputFormat} turns every group into one split.
+ */
+public class SplitPlanner {
+
+	static final String STATS_FILE_PREFIX = "_stats-m-";
+
+	/**
+	 * A byte range of an input file and what it cost.
+	 */
+	static class Chunk {
+		final Path path;
+		final long start;
+		final long length;
+		final long fileLength;
+		long vectors;
+		double cost;
+
+		Chunk(Path path, long start, long length, long fileLength) {
+			this.path = path;
+			this.start = start;
+			this.length = length;
+			this.fileLength = fileLength;
+		}
+	}
+
+	private final FileSystem fs;
+
+	public SplitPlanner(FileSystem fs) {
+		this.fs = fs;
+	}
+
+	/**
+	 * Writes the stats of one map task as a side file in dir.
+	 */
+	public static void writeStats(FileSystem fs, Path file, InputSplit split, long vectors, long nanos)
+			throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		if(split instanceof CombineFileSplit){
+			CombineFileSplit combined = (CombineFileSplit) split;
+			for(int i = 0; i < combined.getNumPaths(); i++)
+				chunks.add(new Chunk(combined.getPath(i), combined.getOffset(i), combined.getLength(i),
+						fs.getFileStatus(combined.getPath(i)).getLen()));
+		}
+		else if(split instanceof FileSplit){
+			FileSplit fileSplit = (FileSplit) split;
+			chunks.add(new Chunk(fileSplit.getPath(), fileSplit.getStart(), fileSplit.getLength(),
+					fs.getFileStatus(fileSplit.getPath()).getLen()));
+		}
+		long bytes = 0;
+		for(Chunk chunk : chunks)
+			bytes += chunk.length;
+		Writer out = new OutputStreamWriter(fs.create(file, true), "UTF-8");
+		try {
+			for(Chunk chunk : chunks){
+				double share = bytes == 0 ? 1.0 / chunks.size() : (double)chunk.length / bytes;
+				out.write(chunk.path + "\t" + chunk.start + "\t" + chunk.length + "\t" + chunk.fileLength
+						+ "\t" + Math.round(vectors * share) + "\t" + Math.round(nanos * share) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the ranges measured by the map tasks of the job writing to dir
+	 */
+	public List<Chunk> readStats(Path dir) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for(FileStatus status : fs.listStatus(dir)){
+			if(!status.getPath().getName().startsWith(STATS_FILE_PREFIX))
+				continue;
+			BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+			try {
+				String line;
+				while((line = in.readLine()) != null){
+					String[] fields = line.split("\t");
+					Chunk chunk = new Chunk(new Path(fields[0]), Long.parseLong(fields[1]),
+							Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+					chunk.vectors = Long.parseLong(fields[4]);
+					chunk.cost = Long.parseLong(fields[5]);
+					chunks.add(chunk);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return the groups of the next iteration, each to be read by one task
+	 */
+	public List<List<Chunk>> plan(List<Chunk> measured, int tasks, boolean splittable, long minChunkBytes)
+			throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>(measured);
+		double total = 0;
+		for(Chunk chunk : chunks)
+			total += chunk.cost;
+		if(total == 0){
+			//too fast to time: fall back to the vector counts
+			for(Chunk chunk : chunks){
+				chunk.cost = chunk.vectors;
+				total += chunk.cost;
+			}
+		}
+		Collections.sort(chunks, new Comparator<Chunk>() {
+			@Override
+			public int compare(Chunk a, Chunk b) {
+				int cmp = a.path.toString().compareTo(b.path.toString());
+				return cmp != 0 ? cmp : Long.compare(a.start, b.start);
+			}
+		});
+		tasks = Math.max(1, tasks);
+		return splittable ? cut(chunks, tasks, total, minChunkBytes)
+				: pack(splitHotFiles(mergeFiles(chunks), tasks, total, minChunkBytes), tasks);
+	}
+
+	/**
+	 * Walks the ranges in file order and closes a group whenever it reaches
+	 * its share of the cost, cutting a range where the share runs out.
+	 */
+	private List<List<Chunk>> cut(List<Chunk> chunks, int tasks, double total, long minChunkBytes) {
+		double target = total / tasks;
+		List<List<Chunk>> groups = new ArrayList<List<Chunk>>();
+		List<Chunk> group = new ArrayList<Chunk>();
+		double groupCost = 0;
+		for(Chunk chunk : chunks){
+			long offset = chunk.start;
+			long end = chunk.start + chunk.length;
+			double density = chunk.length == 0 ? 0 : chunk.cost / chunk.length;
+			while(offset < end){
+				long take = end - offset;
+				if(density > 0 && groups.size() < tasks - 1){
+					long fits = (long)Math.ceil((target - groupCost) / density);
+					//never leave a sliver of a range behind
+					if(fits < take && end - offset - fits >= minChunkBytes)
+						take = Math.max(fits, minChunkBytes);
+				}
+				Chunk piece = new Chunk(chunk.path, offset, take, chunk.fileLength);
+				piece.cost = density * take;
+				groupCost += piece.cost;
+				Chunk last = group.isEmpty() ? null : group.get(group.size() - 1);
+				if(last != null && last.path.equals(piece.path) && last.start + last.length == piece.start){
+					//the pieces of earlier plans grow back together
+					Chunk joined = new Chunk(last.path, last.start, last.length + piece.length, last.fileLength);
+					joined.cost = last.cost + piece.cost;
+					group.set(group.size() - 1, joined);
+				}
+				else{
+					group.add(piece);
+				}
+				offset += take;
+				if(groupCost >= target * 0.999 && groups.size() < tasks - 1){
+					groups.add(group);
+					group = new ArrayList<Chunk>();
+					groupCost = 0;
+				}
+			}
+		}
+		if(!group.isEmpty())
+			groups.add(group);
+		return groups;
+	}
+
+	/**
+	 * One chunk per file, covering the whole file.
+	 */
+	private List<Chunk> mergeFiles(List<Chunk> chunks) {
+		Map<String, Chunk> files = new LinkedHashMap<String, Chunk>();
+		for(Chunk chunk : chunks){
+			Chunk file = files.get(chunk.path.toString());
+			if(file == null){
+				file = new Chunk(chunk.path, 0, chunk.fileLength, chunk.fileLength);
+				files.put(chunk.path.toString(), file);
+			}
+			file.cost += chunk.cost;
+			file.vectors += chunk.vectors;
+		}
+		return new ArrayList<Chunk>(files.values());
+	}
+
+	/**
+	 * Cuts every file costing more than total / tasks into about that many
+	 * pieces of at least minChunkBytes. Pieces start at sync markers, where
+	 * a reader can start; a file without one in range stays whole.
+	 */
+	private List<Chunk> splitHotFiles(List<Chunk> files, int tasks, double total, long minChunkBytes)
+			throws IOException {
+		double target = total / tasks;
+		List<Chunk> pieces = new ArrayList<Chunk>();
+		for(Chunk file : files){
+			int parts = (int)Math.min(Math.ceil(file.cost / Math.max(target, Double.MIN_VALUE)),
+					file.length / Math.max(1, minChunkBytes));
+			if(parts < 2){
+				pieces.add(file);
+				continue;
+			}
+			List<Long> starts = new ArrayList<Long>();
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs.getConf(), SequenceFile.Reader.file(file.path));
+			try {
+				starts.add(0L);
+				for(int i = 1; i < parts; i++){
+					reader.sync(file.length * i / parts);
+					long sync = reader.getPosition();
+					if(sync > starts.get(starts.size() - 1) && sync < file.length)
+						starts.add(sync);
+				}
+			} finally {
+				reader.close();
+			}
+			for(int i = 0; i < starts.size(); i++){
+				long start = starts.get(i);
+				long end = i + 1 < starts.size() ? starts.get(i + 1) : file.length;
+				Chunk piece = new Chunk(file.path, start, end - start, file.fileLength);
+				double share = (double)(end - start) / file.length;
+				piece.cost = file.cost * share;
+				piece.vectors = Math.round(file.vectors * share);
+				pieces.add(piece);
+			}
+		}
+		return pieces;
+	}
+
+	/**
+	 * Longest processing time first: the most expensive file goes to the
+	 * least loaded group.
+	 */
+	private List<List<Chunk>> pack(List<Chunk> files, int tasks) {
+		Collections.sort(files, new Comparator<Chunk>() {
+			@Override
+			public int compare(Chunk a, Chunk b) {
+				return Double.compare(b.cost, a.cost);
+			}
+		});
+		final double[] load = new double[Math.min(tasks, files.size())];
+		List<List<Chunk>> groups = new ArrayList<List<Chunk>>();
+		PriorityQueue<Integer> least = new PriorityQueue<Integer>(Math.max(1, load.length), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(load[a], load[b]);
+			}
+		});
+		for(int i = 0; i < load.length; i++){
+			groups.add(new ArrayList<Chunk>());
+			least.add(i);
+		}
+		for(Chunk file : files){
+			int g = least.poll();
+			groups.get(g).add(file);
+			load[g] += file.cost;
+			least.add(g);
+		}
+		return groups;
+	}
+
+	/**
+	 * Writes a plan as "group path start length fileLength" lines.
+	 */
+	public void writePlan(List<List<Chunk>> groups, Path file) throws IOException {
+		Writer out = new OutputStreamWriter(fs.create(file, true), "UTF-8");
+		try {
+			for(int g = 0; g < groups.size(); g++){
+				for(Chunk chunk : groups.get(g))
+					out.write(g + "\t" + chunk.path + "\t" + chunk.start + "\t" + chunk.length
+							+ "\t" + chunk.fileLength + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the groups of a plan, or null if an input file changed since
+	 *         the plan was made
+	 */
+	public List<List<Chunk>> readPlan(Path file) throws IOException {
+		List<List<Chunk>> groups = new ArrayList<List<Chunk>>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(file), "UTF-8"));
+		try {
+			String line;
+			while((line = in.readLine()) != null){
+				String[] fields = line.split("\t");
+				int g = Integer.parseInt(fields[0]);
+				Chunk chunk = new Chunk(new Path(fields[1]), Long.parseLong(fields[2]),
+						Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+				if(fs.getFileStatus(chunk.path).getLen() != chunk.fileLength)
+					return null;
+				while(groups.size() <= g)
+					groups.add(new ArrayList<Chunk>());
+				groups.get(g).add(chunk);
+			}
+		} finally {
+			in.close();
+		}
+		return groups;
+	}
+}
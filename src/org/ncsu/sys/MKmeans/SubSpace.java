@@ -1,59 +1,59 @@
 package org.ncsu.sys.MKmeans;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.SplittableRandom;
 
+/**
+ * One cell of the grid used by MKMUtils.prepareAstroPhyInput: a box of
+ * segPerDim^dimension equal boxes over [0, maxNum)^dimension, and the
+ * number of vectors to draw inside it. Cell id s has segment
+ * (s / segPerDim^i) % segPerDim along dimension i; the last segment of every
+ * dimension also takes the remainder of maxNum / segPerDim.
+ *
+ * Vectors are drawn directly inside the box, uniformly, from a stream
+ * seeded by the cell id, so a cell always holds the same vectors whichever
+ * thread writes it.
+ */
 public class SubSpace {
 	private int id;
-	private int capacity;
-	private List<Value> vectors;
-	
-	public SubSpace(){
-		this.vectors = new ArrayList<Value>();
-	}
-	
-	public SubSpace(int id, int capacity){
+	private long capacity;
+	private int[] low;
+	private int[] high;
+
+	public SubSpace(int id, long capacity, int segPerDim, int maxNum, int dimension){
 		this.id = id;
 		this.capacity = capacity;
-		this.vectors = new ArrayList<Value>();
+		int segLength = maxNum / segPerDim;
+		this.low = new int[dimension];
+		this.high = new int[dimension];
+		int rest = id;
+		for(int i = 0; i < dimension; i++){
+			int seg = rest % segPerDim;
+			rest /= segPerDim;
+			low[i] = seg * segLength;
+			high[i] = seg == segPerDim - 1 ? maxNum : (seg + 1) * segLength;
+		}
 	}
-	
+
 	public int getId() {
 		return id;
 	}
-//
-//	public void setId(int id) {
-//		this.id = id;
-//	}
 
-	public int getCapacity() {
+	/**
+	 * @return the number of vectors drawn in this subspace
+	 */
+	public long getCapacity() {
 		return capacity;
 	}
-	
-	public List<Value> getVectors() {
-		return vectors;
-	}
-	
-	public void setVectors(List<Value> vectors) {
-		this.vectors = vectors;
+
+	public SplittableRandom newRandom(long seed) {
+		return new SplittableRandom(seed + (id + 1) * 0x9E3779B97F4A7C15L);
 	}
-	
+
 	/**
-	 *	Inserts the element if the subspace is not full. 
-	 * 
-	 * @return true		If inserted successfully
-	 * 			false	If the capacity is full
+	 * Draws the next vector of this subspace into row.
 	 */
-	public boolean offer(Value val){
-		boolean isInserted = false;
-		if(this.vectors.size() < this.capacity){
-			this.vectors.add(val);
-			isInserted = true;
-		}
-		return isInserted;
-	}
-	
-	public boolean isFull(){
-		return this.vectors.size() == this.capacity;
+	public void next(SplittableRandom random, int[] row) {
+		for(int i = 0; i < row.length; i++)
+			row[i] = random.nextInt(low[i], high[i]);
 	}
 }
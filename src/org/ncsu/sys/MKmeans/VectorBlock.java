@@ -0,0 +1,304 @@
+package org.ncsu.sys.MKmeans;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+
+/**
+ * A batch of equal-dimension vectors stored row-major in one contiguous int[].
+ * Row i occupies data[i*dimension .. (i+1)*dimension - 1]; the centroid index
+ * of every row is kept in a parallel int[] so that nothing is lost on a
+ * Values round trip. No per-vector objects are created.
+ */
+public class VectorBlock {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int dimension;
+	private int count;
+	private int[] data;
+	private int[] centroidIdx;
+
+	public VectorBlock(){
+		this(0, DEFAULT_CAPACITY);
+	}
+
+	public VectorBlock(int dimension, int capacity){
+		this.dimension = dimension;
+		this.count = 0;
+		this.data = new int[dimension * capacity];
+		this.centroidIdx = new int[capacity];
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the backing array; only the first count*dimension entries are valid
+	 */
+	public int[] getData() {
+		return data;
+	}
+
+	public int getOffset(int row) {
+		return row * dimension;
+	}
+
+	public int getCentroidIdx(int row) {
+		return centroidIdx[row];
+	}
+
+	public void setCentroidIdx(int row, int idx) {
+		centroidIdx[row] = idx;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public void ensureCapacity(int rows) {
+		if(rows > centroidIdx.length){
+			int newCap = Math.max(rows, centroidIdx.length * 2);
+			int[] newData = new int[newCap * dimension];
+			System.arraycopy(data, 0, newData, 0, count * dimension);
+			data = newData;
+			int[] newIdx = new int[newCap];
+			System.arraycopy(centroidIdx, 0, newIdx, 0, count);
+			centroidIdx = newIdx;
+		}
+	}
+
+	/**
+	 * Appends a row and returns its offset in the data array.
+	 */
+	int nextRow(int dim) throws IOException {
+		if(count == 0 && dimension != dim){
+			// an empty block adopts the dimension of the first vector
+			dimension = dim;
+			data = new int[dim * centroidIdx.length];
+		}
+		else if(dimension != dim){
+			throw new IOException("Dimension mismatch: block has " + dimension + ", vector has " + dim);
+		}
+		ensureCapacity(count + 1);
+		return count++ * dimension;
+	}
+
+	public void add(int[] coords, int idx) throws IOException {
+		int off = nextRow(coords.length);
+		System.arraycopy(coords, 0, data, off, coords.length);
+		centroidIdx[count - 1] = idx;
+	}
+
+	public void add(Value val) throws IOException {
+		add(val.getCoordinates(), val.getCentroidIdx());
+	}
+
+	public void addAll(VectorBlock other) throws IOException {
+		if(other.count == 0)
+			return;
+		if(count == 0 && dimension != other.dimension){
+			dimension = other.dimension;
+			data = new int[dimension * centroidIdx.length];
+		}
+		else if(dimension != other.dimension){
+			throw new IOException("Dimension mismatch: block has " + dimension + ", other has " + other.dimension);
+		}
+		ensureCapacity(count + other.count);
+		System.arraycopy(other.data, 0, data, count * dimension, other.count * dimension);
+		System.arraycopy(other.centroidIdx, 0, centroidIdx, count, other.count);
+		count += other.count;
+	}
+
+	/**
+	 * Appends rows copied in bulk from a buffer of row-major coordinates,
+	 * e.g. a memory-mapped {@link PartitionCache} file.
+	 */
+	public void addRows(IntBuffer src, int rows, int dim) throws IOException {
+		if(rows == 0)
+			return;
+		if(count == 0 && dimension != dim){
+			dimension = dim;
+			data = new int[dim * centroidIdx.length];
+		}
+		else if(dimension != dim){
+			throw new IOException("Dimension mismatch: block has " + dimension + ", rows have " + dim);
+		}
+		ensureCapacity(count + rows);
+		src.get(data, count * dimension, rows * dimension);
+		Arrays.fill(centroidIdx, count, count + rows, MKMTypes.UNDEF_VAL);
+		count += rows;
+	}
+
+	/**
+	 * Reads one vector in the {@link Value} wire format straight into a new row.
+	 */
+	public void readVector(DataInput in) throws IOException {
+		int dim = in.readInt();
+		int off = nextRow(dim);
+		for(int i = 0; i < dim; i++){
+			data[off + i] = in.readInt();
+		}
+		centroidIdx[count - 1] = in.readInt();
+	}
+
+	/**
+	 * Writes one row in the {@link Value} wire format.
+	 */
+	public void writeVector(int row, DataOutput out) throws IOException {
+		out.writeInt(dimension);
+		int off = row * dimension;
+		for(int i = 0; i < dimension; i++){
+			out.writeInt(data[off + i]);
+		}
+		out.writeInt(centroidIdx[row]);
+	}
+
+	/**
+	 * Reads count rows of the given dimension in the compact format of
+	 * {@link MKMTypes.ValuesFormat}, the count and dimension already consumed.
+	 */
+	public void readCompact(DataInput in, int rows, int dim, boolean delta) throws IOException {
+		clear();
+		if(dimension != dim){
+			dimension = dim;
+			data = new int[dim * centroidIdx.length];
+		}
+		ensureCapacity(rows);
+		if(in instanceof DataInputBuffer){
+			readCompact((DataInputBuffer) in, rows, dim, delta);
+			return;
+		}
+		int off = 0;
+		for(int i = 0; i < rows; i++){
+			for(int j = 0; j < dim; j++){
+				int v = unZigZag(readVarInt(in));
+				data[off + j] = delta && i > 0 ? data[off - dim + j] + v : v;
+			}
+			centroidIdx[i] = unZigZag(readVarInt(in));
+			off += dim;
+		}
+		count = rows;
+	}
+
+	/**
+	 * SequenceFile hands values over in a DataInputBuffer: decode straight
+	 * from its array instead of one readByte call per byte.
+	 */
+	private void readCompact(DataInputBuffer in, int rows, int dim, boolean delta) throws IOException {
+		byte[] bytes = in.getData();
+		int start = in.getPosition();
+		int end = in.getLength();
+		int pos = start;
+		int off = 0;
+		try {
+			for(int i = 0; i < rows; i++){
+				for(int j = 0; j < dim; j++){
+					int v = 0;
+					int shift = 0;
+					byte b;
+					while((b = bytes[pos++]) < 0){
+						v |= (b & 0x7F) << shift;
+						shift += 7;
+					}
+					v = unZigZag(v | (b << shift));
+					data[off + j] = delta && i > 0 ? data[off - dim + j] + v : v;
+				}
+				int idx = 0;
+				int shift = 0;
+				byte b;
+				while((b = bytes[pos++]) < 0){
+					idx |= (b & 0x7F) << shift;
+					shift += 7;
+				}
+				centroidIdx[i] = unZigZag(idx | (b << shift));
+				off += dim;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EOFException("Truncated compact Values record");
+		}
+		if(pos > end)
+			throw new EOFException("Truncated compact Values record");
+		count = rows;
+		in.skip(pos - start);
+	}
+
+	/**
+	 * Writes the count, the dimension and all rows in the compact format of
+	 * {@link MKMTypes.ValuesFormat}.
+	 */
+	public void writeCompact(DataOutput out, boolean delta) throws IOException {
+		//worst case 5 bytes per varint
+		byte[] buf = new byte[5 * (dimension + 1)];
+		int len = putVarInt(buf, putVarInt(buf, 0, count), dimension);
+		out.write(buf, 0, len);
+		int off = 0;
+		for(int i = 0; i < count; i++){
+			len = 0;
+			for(int j = 0; j < dimension; j++){
+				int v = delta && i > 0 ? data[off + j] - data[off - dimension + j] : data[off + j];
+				len = putVarInt(buf, len, zigZag(v));
+			}
+			len = putVarInt(buf, len, zigZag(centroidIdx[i]));
+			out.write(buf, 0, len);
+			off += dimension;
+		}
+	}
+
+	static int zigZag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	static int unZigZag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Unsigned LEB128: 7 bits per byte, low bits first.
+	 */
+	static int putVarInt(byte[] buf, int pos, int v) {
+		while((v & ~0x7F) != 0){
+			buf[pos++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte)v;
+		return pos;
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int v = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			byte b = in.readByte();
+			v |= (b & 0x7F) << shift;
+			if(b >= 0)
+				return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public Value getValue(int row) {
+		Value val = new Value(dimension, centroidIdx[row]);
+		System.arraycopy(data, row * dimension, val.getCoordinates(), 0, dimension);
+		return val;
+	}
+
+	public List<Value> toValues() {
+		List<Value> values = new ArrayList<Value>(count);
+		for(int i = 0; i < count; i++){
+			values.add(getValue(i));
+		}
+		return values;
+	}
+}
@@ -2,8 +2,6 @@ package org.ncsu.sys.MKmeans;
 
 import org.ncsu.sys.MKmeans.MKMTypes.VectorType;
 
-import com.sun.org.apache.xerces.internal.impl.xpath.regex.RegularExpression;
-
 public class VectorFactory {
 	public static Value getInstance(VectorType type){
 		Value value = null;
@@ -15,6 +13,12 @@ public class VectorFactory {
 		case PARTIALCENTROID:
 			value = new PartialCentroid();
 			break;
+		case SPARSE:
+			value = new SparseValue();
+			break;
+		case DOUBLE:
+			value = new DoubleValue();
+			break;
 		default:
 			System.out.println("ERROR: undefined type");
 			break;
@@ -32,6 +36,12 @@ public class VectorFactory {
 			case PARTIALCENTROID:
 				value = new PartialCentroid(dimension);
 				break;
+			case SPARSE:
+				value = new SparseValue(dimension);
+				break;
+			case DOUBLE:
+				value = new DoubleValue(dimension);
+				break;
 			default:
 				System.out.println("ERROR: undefined type");
 				break;
@@ -0,0 +1,83 @@
+package org.ncsu.sys.MKmeansTest;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.ncsu.sys.MKmeans.AssignerFactory;
+import org.ncsu.sys.MKmeans.Assigner;
+import org.ncsu.sys.MKmeans.MKMTypes.AssignmentType;
+import org.ncsu.sys.MKmeans.VectorBlock;
+
+/**
+ * Prints nanoseconds per assigned vector for every assignment strategy over
+ * a grid of k and dimension. Vectors are drawn around the centroids with a
+ * spread close to the centroid spacing, so that the input looks like a
+ * half-converged clustering. Coordinates stay below RANGE so that the int
+ * distance of MKMUtils cannot overflow at d = 32.
+ *
+ * USAGE: AssignerBenchmark [vectors per run]
+ */
+public class AssignerBenchmark {
+
+	private static final int[] DIMENSIONS = {2, 4, 8, 16, 32};
+	private static final int[] KS = {8, 16, 32, 64, 128, 256, 512, 2048};
+	private static final int RUNS = 5;
+	private static final int RANGE = 4096;
+
+	public static void main(String[] args) throws IOException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		AssignmentType[] types = {AssignmentType.LINEAR, AssignmentType.HAMERLY, AssignmentType.KDTREE};
+		System.out.print("d\tk");
+		for(AssignmentType type : types)
+			System.out.print("\t" + type);
+		System.out.println("\tAUTO picks");
+		for(int d : DIMENSIONS){
+			for(int k : KS){
+				Random r = new Random(31 * k + d);
+				double spread = RANGE / Math.pow(k, 1.0 / d);
+				VectorBlock centroids = new VectorBlock(d, k);
+				for(int i = 0; i < k; i++){
+					int[] c = new int[d];
+					for(int j = 0; j < d; j++)
+						c[j] = r.nextInt(RANGE);
+					centroids.add(c, i);
+				}
+				VectorBlock points = new VectorBlock(d, n);
+				int[] p = new int[d];
+				for(int i = 0; i < n; i++){
+					int c = r.nextInt(k);
+					for(int j = 0; j < d; j++)
+						p[j] = centroids.getData()[c * d + j] + (int)(r.nextGaussian() * spread);
+					points.add(p, -1);
+				}
+				System.out.print(d + "\t" + k);
+				for(AssignmentType type : types){
+					System.out.print("\t" + time(type, centroids, points));
+				}
+				System.out.println("\t" + AssignerFactory.getInstance(AssignmentType.AUTO, centroids)
+						.getClass().getSimpleName());
+			}
+		}
+	}
+
+	/**
+	 * @return best-of-RUNS nanoseconds per vector, including building the index
+	 */
+	private static long time(AssignmentType type, VectorBlock centroids, VectorBlock points) {
+		long best = Long.MAX_VALUE;
+		long sink = 0;
+		for(int run = 0; run < RUNS; run++){
+			long start = System.nanoTime();
+			Assigner assigner = AssignerFactory.getInstance(type, centroids);
+			int[] data = points.getData();
+			int d = points.getDimension();
+			for(int i = 0; i < points.getCount(); i++){
+				sink += assigner.getNearestRow(data, i * d);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		if(sink == 42)
+			System.out.print("");
+		return best / points.getCount();
+	}
+}
@@ -0,0 +1,48 @@
+package org.ncsu.sys.MKmeansTest;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs three iterations of MKMDriver with and without KM.balance on the
+ * skewed astro layout, where the plan regroups and cuts the partitions from
+ * the second iteration on. Balancing must only change which task reads
+ * which vectors: every iteration must classify the same vectors and end
+ * with the same centroids. Exits with 1 on a mismatch, or when no plan was
+ * made.
+ *
+ * Writes under tmp/kmeans of the current directory, so run it from a
+ * scratch directory.
+ *
+ * USAGE: BalanceEquivalenceTest [vectors]
+ */
+public class BalanceEquivalenceTest {
+
+	private static final String PLAN = "tmp/kmeans/balance/plan-2";
+
+	public static void main(String[] args) throws Exception {
+		String count = args.length > 0 ? args[0] : "20000";
+		boolean ok = true;
+		//Values partitions, packed into groups and cut at sync markers
+		ok &= check("values", count, "KM.generator=astro", "KM.gen.batchSize=500",
+				"KM.chunkedRead=true", "KM.classifyBatchSize=1000");
+		//small records, cut at any offset
+		ok &= check("records", count, "KM.generator=astro", "KM.vectorPerRecord=true",
+				"KM.recordBatchSize=200");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean check(String name, String count, String... settings) throws Exception {
+		List<String> plain = StreamingEquivalenceTest.run(3, count, settings);
+		List<String> balanced = StreamingEquivalenceTest.run(3, count, StreamingEquivalenceTest.with(settings,
+				"KM.balance=true", "KM.balance.tasks=4", "KM.balance.minChunkBytes=4096"));
+		boolean planned = new File(PLAN).exists();
+		boolean ok = planned && plain.equals(balanced);
+		System.out.println(name + ": " + (ok ? "OK" : planned ? "MISMATCH" : "NO PLAN"));
+		if(!ok){
+			System.out.println("  plain:    " + plain);
+			System.out.println("  balanced: " + balanced);
+		}
+		return ok;
+	}
+}
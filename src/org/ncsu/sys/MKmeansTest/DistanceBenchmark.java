@@ -0,0 +1,112 @@
+package org.ncsu.sys.MKmeansTest;
+
+import java.util.Random;
+
+import org.ncsu.sys.MKmeans.MKMUtils;
+
+/**
+ * Prints nanoseconds per point-to-centroid distance for the kernel in
+ * MKMUtils against the int loop it replaced and a plain (not unrolled) long
+ * loop, and for the double kernel used with KM.coordinates=double.
+ *
+ * USAGE: DistanceBenchmark [points per run]
+ */
+public class DistanceBenchmark {
+
+	private static final int[] DIMENSIONS = {2, 8, 32, 128, 512};
+	private static final int CENTROIDS = 64;
+	private static final int RUNS = 7;
+	private static long sink;
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		System.out.println("d\tint(old)\tlong\tlong-unrolled\tdouble-unrolled");
+		for(int d : DIMENSIONS){
+			Random r = new Random(d);
+			int points = Math.max(1, n * 8 / d);
+			int[] p = new int[points * d];
+			int[] c = new int[CENTROIDS * d];
+			for(int i = 0; i < p.length; i++)
+				p[i] = r.nextInt(4096);
+			for(int i = 0; i < c.length; i++)
+				c[i] = r.nextInt(4096);
+			double[] pd = new double[p.length];
+			double[] cd = new double[c.length];
+			for(int i = 0; i < p.length; i++)
+				pd[i] = p[i];
+			for(int i = 0; i < c.length; i++)
+				cd[i] = c[i];
+			long[] best = new long[4];
+			for(int i = 0; i < best.length; i++)
+				best[i] = Long.MAX_VALUE;
+			for(int run = 0; run < RUNS; run++){
+				for(int kernel = 0; kernel < best.length; kernel++){
+					long start = System.nanoTime();
+					switch(kernel){
+					case 0: sink += runInt(p, c, points, d); break;
+					case 1: sink += runLong(p, c, points, d); break;
+					case 2: sink += runUnrolled(p, c, points, d); break;
+					default: sink += runDouble(pd, cd, points, d); break;
+					}
+					best[kernel] = Math.min(best[kernel], System.nanoTime() - start);
+				}
+			}
+			StringBuilder sb = new StringBuilder();
+			sb.append(d);
+			for(long t : best)
+				sb.append("\t").append(String.format("%.2f", t / (double)(points * CENTROIDS)));
+			System.out.println(sb.toString());
+		}
+		if(sink == 42)
+			System.out.println();
+	}
+
+	private static long runInt(int[] p, int[] c, int points, int d) {
+		long sum = 0;
+		for(int i = 0; i < points; i++)
+			for(int j = 0; j < CENTROIDS; j++)
+				sum += intDistance(p, i * d, c, j * d, d);
+		return sum;
+	}
+
+	private static long runLong(int[] p, int[] c, int points, int d) {
+		long sum = 0;
+		for(int i = 0; i < points; i++)
+			for(int j = 0; j < CENTROIDS; j++)
+				sum += longDistance(p, i * d, c, j * d, d);
+		return sum;
+	}
+
+	private static long runUnrolled(int[] p, int[] c, int points, int d) {
+		long sum = 0;
+		for(int i = 0; i < points; i++)
+			for(int j = 0; j < CENTROIDS; j++)
+				sum += MKMUtils.getDistance(p, i * d, c, j * d, d);
+		return sum;
+	}
+
+	private static long runDouble(double[] p, double[] c, int points, int d) {
+		double sum = 0;
+		for(int i = 0; i < points; i++)
+			for(int j = 0; j < CENTROIDS; j++)
+				sum += MKMUtils.getDistance(p, i * d, c, j * d, d);
+		return (long) sum;
+	}
+
+	private static int intDistance(int[] p, int po, int[] c, int co, int d) {
+		int distance = 0;
+		for(int i = 0; i < d; i++){
+			distance += (p[po + i] - c[co + i]) * (p[po + i] - c[co + i]);
+		}
+		return distance;
+	}
+
+	private static long longDistance(int[] p, int po, int[] c, int co, int d) {
+		long distance = 0;
+		for(int i = 0; i < d; i++){
+			long diff = (long)p[po + i] - c[co + i];
+			distance += diff * diff;
+		}
+		return distance;
+	}
+}
@@ -0,0 +1,115 @@
+package org.ncsu.sys.MKmeansTest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.ncsu.sys.MKmeans.MKMDriver;
+import org.ncsu.sys.MKmeans.MKMUtils;
+import org.ncsu.sys.MKmeans.Value;
+
+/**
+ * Runs one iteration of MKMDriver with KM.streaming=true and with
+ * KM.streaming=false on inputs where every partition reaches the mapper in
+ * several pieces: chunked reads, and the multi-record partitions of
+ * MKMDataGenerator and of the astro layout. Both modes must classify every
+ * vector exactly once and give the same centroids, and draw the same sample
+ * with KM.sampleFraction. Exits with 1 on a mismatch.
+ *
+ * Writes under tmp/kmeans of the current directory, so run it from a
+ * scratch directory.
+ *
+ * USAGE: StreamingEquivalenceTest [vectors]
+ */
+public class StreamingEquivalenceTest {
+
+	private static final String CENTERS = "tmp/kmeans/centerOut/iteration-";
+	private static final String REPORT = "tmp/kmeans/report/report.csv";
+
+	public static void main(String[] args) throws Exception {
+		String count = args.length > 0 ? args[0] : "20000";
+		boolean ok = true;
+		//chunked reads: a Values record is cut into 1000-vector chunks
+		ok &= check("chunked", count, "KM.generator=legacy", "KM.chunkedRead=true",
+				"KM.classifyBatchSize=1000");
+		//several Values records per partition, read whole
+		ok &= check("generator", count, "KM.generator=local", "KM.gen.batchSize=1000",
+				"KM.chunkedRead=false", "KM.classifyBatchSize=65536");
+		ok &= check("astro", count, "KM.generator=astro", "KM.gen.batchSize=1000",
+				"KM.chunkedRead=false", "KM.classifyBatchSize=65536");
+		//mini-batch style sampling, applied to the buffered split in cleanup
+		ok &= check("sampled", count, "KM.generator=local", "KM.gen.batchSize=1000",
+				"KM.chunkedRead=false", "KM.classifyBatchSize=65536", "KM.sampleFraction=0.5");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean check(String name, String count, String... settings) throws Exception {
+		List<String> streamed = run(1, count, with(settings, "KM.streaming=true"));
+		List<String> buffered = run(1, count, with(settings, "KM.streaming=false"));
+		boolean ok = streamed.equals(buffered);
+		System.out.println(name + ": " + (ok ? "OK" : "MISMATCH"));
+		if(!ok){
+			System.out.println("  streaming: " + streamed);
+			System.out.println("  buffered:  " + buffered);
+		}
+		return ok;
+	}
+
+	static String[] with(String[] settings, String... more) {
+		List<String> all = new ArrayList<String>(Arrays.asList(settings));
+		all.addAll(Arrays.asList(more));
+		return all.toArray(new String[all.size()]);
+	}
+
+	/**
+	 * Runs the driver for the given number of iterations on two partitions.
+	 *
+	 * @return the vectors classified in every iteration, followed by the
+	 *         centroids of the last one
+	 */
+	static List<String> run(int iterations, String count, String... settings) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.addAll(Arrays.asList("-D", "fs.defaultFS=file:///"));
+		//the driver's conf outlives a run, so reset what only some scenarios set
+		for(String reset : new String[]{ "KM.sampleFraction=1", "KM.vectorPerRecord=false", "KM.balance=false" })
+			args.addAll(Arrays.asList("-D", reset));
+		for(String setting : settings)
+			args.addAll(Arrays.asList("-D", setting));
+		args.addAll(Arrays.asList(count, "5", "2", "" + iterations, "2", "0", "1", "1"));
+		MKMDriver.main(args.toArray(new String[args.size()]));
+		List<String> result = new ArrayList<String>();
+		result.add("vectors=" + vectorsClassified());
+		int last = iterations;
+		while(last > 1 && !new File(CENTERS + last).exists())
+			last--;
+		List<Value> centroids = MKMUtils.getCentroidsFromFile(new Path(CENTERS + last), true);
+		Collections.sort(centroids, new Comparator<Value>() {
+			public int compare(Value a, Value b) {
+				return Integer.compare(a.getCentroidIdx(), b.getCentroidIdx());
+			}
+		});
+		for(Value centroid : centroids)
+			result.add(centroid.toString());
+		return result;
+	}
+
+	private static String vectorsClassified() throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(REPORT));
+		try {
+			List<String> columns = Arrays.asList(in.readLine().split(","));
+			List<String> vectors = new ArrayList<String>();
+			for(String line = in.readLine(); line != null; line = in.readLine())
+				vectors.add(line.split(",")[columns.indexOf("vectors")]);
+			return vectors.toString();
+		} finally {
+			in.close();
+		}
+	}
+}